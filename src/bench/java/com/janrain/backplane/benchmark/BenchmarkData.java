@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.benchmark;
+
+import com.janrain.backplane.common.ExternalizableCore;
+import com.janrain.backplane.common.User;
+import com.janrain.backplane.config.BpServerConfig;
+import com.janrain.backplane.server1.BusConfig1;
+import com.janrain.backplane.server2.*;
+import com.janrain.backplane.server2.oauth2.AuthorizationDecisionKey;
+import com.janrain.backplane.server2.oauth2.AuthorizationRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.*;
+
+/**
+ * Sample entities and messages, sized like production traffic.
+ */
+class BenchmarkData {
+
+    // - PACKAGE
+
+    static final String BUS = "customer.janraincapture.com";
+    static final String SERVER_NAME = "backplane1.janrain.com";
+
+    /** messages returned per /v2/messages frame */
+    static final int FRAME_MESSAGE_COUNT = 25;
+
+    static ExternalizableCore entity(String type) throws Exception {
+        if ("BackplaneMessage".equals(type)) {
+            return message(channel(0), 512);
+        } else if ("BackplaneMessage1".equals(type)) {
+            Map<String,Object> data = new HashMap<String, Object>();
+            data.put("source", "http://" + BUS + "/widget");
+            data.put("type", "identity/login");
+            data.put("payload", payload(512));
+            return new com.janrain.backplane.server1.BackplaneMessage(BUS, channel(0), 60, 28800, data);
+        } else if ("Token".equals(type)) {
+            return anonymousToken(channel(0));
+        } else if ("Grant".equals(type)) {
+            return new Grant.Builder(GrantType.CLIENT_CREDENTIALS, GrantState.ACTIVE, "busOwner", "client1",
+                                     Scope.getEncodedScopesAsString(BackplaneMessage.Field.BUS, buses(5))).buildGrant();
+        } else if ("Channel".equals(type)) {
+            return new Channel(channel(0), busConfig2(), 3600);
+        } else if ("BusConfig1".equals(type)) {
+            return new BusConfig1(BUS, "busOwner", "60", "28800");
+        } else if ("BusConfig2".equals(type)) {
+            return busConfig2();
+        } else if ("Client".equals(type)) {
+            return new Client("client1", "secret", "http://" + BUS, "http://" + BUS + "/redirect");
+        } else if ("User".equals(type)) {
+            return new User("busOwner", "5x9V4sCTIxQ9SyfC+MSpYpDjBQVu8YTAhsww63AYEUs=.ID6331imBzGHe7OwxzuFWLvuEnV0Yvbc/7dhw2+8qE0=");
+        } else if ("AuthSession".equals(type)) {
+            return new AuthSession("busOwner", cookie());
+        } else if ("AuthorizationRequest".equals(type)) {
+            Map<String,String[]> params = new HashMap<String, String[]>();
+            params.put("client_id", new String[] {"client1"});
+            params.put("response_type", new String[] {"code"});
+            params.put("redirect_uri", new String[] {"http://" + BUS + "/redirect"});
+            params.put("scope", new String[] {"bus:" + BUS});
+            return new AuthorizationRequest(cookie(), params);
+        } else if ("AuthorizationDecisionKey".equals(type)) {
+            return new AuthorizationDecisionKey(cookie());
+        } else if ("BpServerConfig".equals(type)) {
+            return new BpServerConfig();
+        }
+        throw new IllegalArgumentException("unknown entity type: " + type);
+    }
+
+    static BackplaneMessage message(String channel, int payloadSize) throws Exception {
+        Map<String,Object> data = new HashMap<String, Object>();
+        data.put(BackplaneMessage.Field.BUS.getFieldName(), BUS);
+        data.put(BackplaneMessage.Field.CHANNEL.getFieldName(), channel);
+        data.put(BackplaneMessage.Field.TYPE.getFieldName(), "identity/login");
+        data.put(BackplaneMessage.Field.PAYLOAD.getFieldName(), payload(payloadSize));
+        return new BackplaneMessage("http://" + BUS + "/widget", 60, 28800, data);
+    }
+
+    /**
+     * @return count messages on the provided channel, with unique, increasing IDs
+     */
+    static List<BackplaneMessage> messages(String channel, int count, int payloadSize) throws Exception {
+        List<BackplaneMessage> messages = new ArrayList<BackplaneMessage>();
+        while (messages.size() < count) {
+            BackplaneMessage message = message(channel, payloadSize);
+            if (messages.isEmpty() || messages.get(messages.size() - 1).getIdValue().compareTo(message.getIdValue()) < 0) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    static Token anonymousToken(String channel) throws Exception {
+        return new Token.Builder(GrantType.ANONYMOUS, "bus:" + BUS + " channel:" + channel)
+                .expires(new Date(System.currentTimeMillis() + 3600000l))
+                .buildToken();
+    }
+
+    /**
+     * @return a JSON payload of (about) the requested size, similar to an identity/login message payload
+     */
+    static String payload(int size) {
+        StringBuilder payload = new StringBuilder("{\"identities\":{\"startIndex\":0,\"itemsPerPage\":1,\"totalResults\":1,\"entry\":" +
+                "{\"displayName\":\"Test User\",\"accounts\":[{\"domain\":\"facebook.com\",\"userid\":\"1234567890\"}]}}," +
+                "\"context\":\"");
+        while (payload.length() < size - 2) {
+            payload.append('x');
+        }
+        return payload.append("\"}").toString();
+    }
+
+    static List<String> buses(int count) {
+        List<String> buses = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            buses.add("bus" + i + "." + BUS);
+        }
+        return buses;
+    }
+
+    static String channel(int i) {
+        return "Xh7hGk2cRvSvQd1mZmIaQb" + i;
+    }
+
+    static byte[] javaSerialize(Object obj) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // - PRIVATE
+
+    private static BusConfig2 busConfig2() throws Exception {
+        return new BusConfig2(BUS, "busOwner", "60", "28800");
+    }
+
+    private static String cookie() {
+        return "ifqkB6rW1udYSi2pcKCk9DUl4mDiObx";
+    }
+
+    private BenchmarkData() { }
+}
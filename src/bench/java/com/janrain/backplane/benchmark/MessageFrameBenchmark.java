@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.benchmark;
+
+import com.janrain.backplane.server2.BackplaneMessage;
+import com.janrain.backplane.server2.MessagesResponse;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of /v2/messages frames.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFrameBenchmark {
+
+    @Param({"256", "2048"})
+    public int payloadSize;
+
+    @Setup
+    public void setup() throws Exception {
+        messages = BenchmarkData.messages(BenchmarkData.channel(0), BenchmarkData.FRAME_MESSAGE_COUNT, payloadSize);
+    }
+
+    @Benchmark
+    public void asFrame(Blackhole blackhole) throws Exception {
+        for (BackplaneMessage message : messages) {
+            blackhole.consume(message.asFrame(BenchmarkData.SERVER_NAME, true));
+        }
+    }
+
+    @Benchmark
+    public Object asResponseFields() throws Exception {
+        MessagesResponse response = new MessagesResponse(null);
+        response.addMessages(messages);
+        response.setLastMessageId(messages.get(messages.size() - 1).getIdValue());
+        return response.asResponseFields(BenchmarkData.SERVER_NAME, false);
+    }
+
+    // - PRIVATE
+
+    private List<BackplaneMessage> messages;
+}
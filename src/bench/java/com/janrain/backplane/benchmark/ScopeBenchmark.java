@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.benchmark;
+
+import com.janrain.backplane.server2.BackplaneMessage;
+import com.janrain.backplane.server2.Scope;
+import com.janrain.backplane.server2.Token;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scope parsing and per-message scope checks, for an anonymous (one bus, one channel)
+ * and a privileged (many buses) scope, against one frame of messages.
+ */
+@State(org.openjdk.jmh.annotations.Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScopeBenchmark {
+
+    @Param({"anonymous", "privileged"})
+    public String scopeType;
+
+    @Setup
+    public void setup() throws Exception {
+        token = BenchmarkData.anonymousToken(BenchmarkData.channel(0));
+        if ("anonymous".equals(scopeType)) {
+            scopeString = token.getScopeString();
+        } else {
+            List<String> buses = BenchmarkData.buses(20);
+            buses.add(BenchmarkData.BUS);
+            scopeString = Scope.getEncodedScopesAsString(BackplaneMessage.Field.BUS, buses);
+        }
+        scope = Scope.valueOf(scopeString);
+        messages = BenchmarkData.messages(BenchmarkData.channel(0), BenchmarkData.FRAME_MESSAGE_COUNT, 512);
+    }
+
+    @Benchmark
+    public Scope parse() throws Exception {
+        return new Scope(scopeString);
+    }
+
+    @Benchmark
+    public Scope valueOf() throws Exception {
+        return Scope.valueOf(scopeString);
+    }
+
+    @Benchmark
+    public Scope tokenGetScope() {
+        return token.getScope();
+    }
+
+    @Benchmark
+    public int isMessageInScopeFrame() {
+        int inScope = 0;
+        for (BackplaneMessage message : messages) {
+            if (scope.isMessageInScope(message)) inScope++;
+        }
+        return inScope;
+    }
+
+    // - PRIVATE
+
+    private Token token;
+    private String scopeString;
+    private Scope scope;
+    private List<BackplaneMessage> messages;
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.benchmark;
+
+import com.janrain.backplane.common.BpSerialUtils;
+import com.janrain.backplane.common.ExternalizableCore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redis value serialization, for each ExternalizableCore type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"BackplaneMessage", "BackplaneMessage1", "Token", "Grant", "Channel", "BusConfig1", "BusConfig2",
+            "Client", "User", "AuthSession", "AuthorizationRequest", "AuthorizationDecisionKey", "BpServerConfig"})
+    public String type;
+
+    @Setup
+    public void setup() throws Exception {
+        entity = BenchmarkData.entity(type);
+        bytes = BpSerialUtils.serialize(entity);
+        legacyBytes = BenchmarkData.javaSerialize(entity);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return BpSerialUtils.serialize(entity);
+    }
+
+    @Benchmark
+    public byte[] serializeLegacy() throws Exception {
+        return BenchmarkData.javaSerialize(entity);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return BpSerialUtils.deserialize(bytes);
+    }
+
+    @Benchmark
+    public Object deserializeLegacy() {
+        return BpSerialUtils.deserialize(legacyBytes);
+    }
+
+    // - PRIVATE
+
+    private ExternalizableCore entity;
+    private byte[] bytes;
+    private byte[] legacyBytes;
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.benchmark;
+
+import com.janrain.backplane.common.DateTimeUtils;
+import com.janrain.backplane.common.RandomUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Date and random ID utilities used on every message and token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Setup
+    public void setup() {
+        date = new Date();
+        iso8601 = DateTimeUtils.ISO8601.get().format(date);
+        messageId = iso8601 + "-" + RandomUtils.randomString(10);
+        expire = DateTimeUtils.INTERNETDATE.get().format(date);
+    }
+
+    @Benchmark
+    public Date iso8601Parse() throws Exception {
+        return DateTimeUtils.ISO8601.get().parse(iso8601);
+    }
+
+    @Benchmark
+    public String iso8601Format() {
+        return DateTimeUtils.ISO8601.get().format(date);
+    }
+
+    @Benchmark
+    public Date messageExpireTime() {
+        return DateTimeUtils.getExpireTime(messageId, expire, false);
+    }
+
+    @Benchmark
+    public String randomString() {
+        // token ID length
+        return RandomUtils.randomString(20);
+    }
+
+    // - PRIVATE
+
+    private Date date;
+    private String iso8601;
+    private String messageId;
+    private String expire;
+}
@@ -1,6 +1,7 @@
 package com.janrain.backplane.common;
 
 
+import com.janrain.backplane.config.BackplaneSystemProps;
 import com.janrain.backplane.config.BpServerConfig;
 import com.janrain.backplane.server1.BusConfig1;
 import com.janrain.backplane.server2.*;
@@ -13,6 +14,10 @@ import java.util.Map;
 
 /**
  * Copied from apache SerializationUtils for customization.
+ *
+ * ExternalizableCore objects are serialized with the compact ExternalizableCoreCodec format,
+ * unless the BP_LEGACY_SERIALIZATION system property is set to true (e.g. while older nodes are still running).
+ * Both formats are accepted when deserializing.
  */
 public class BpSerialUtils {
 
@@ -63,6 +68,9 @@ public class BpSerialUtils {
      * @throws SerializationException (runtime) if the serialization fails
      */
     public static byte[] serialize(Serializable obj) {
+        if (obj instanceof ExternalizableCore && ! LEGACY_SERIALIZATION) {
+            return ExternalizableCoreCodec.encode((ExternalizableCore) obj);
+        }
         ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
         serialize(obj, baos);
         return baos.toByteArray();
@@ -120,10 +128,18 @@ public class BpSerialUtils {
         if (objectData == null) {
             throw new IllegalArgumentException("The byte[] must not be null");
         }
+        if (ExternalizableCoreCodec.isEncoded(objectData)) {
+            //noinspection unchecked
+            return (T) ExternalizableCoreCodec.decode(objectData);
+        }
         ByteArrayInputStream bais = new ByteArrayInputStream(objectData);
         return BpSerialUtils.<T>deserialize(bais);
     }
 
+    // - PRIVATE
+
+    private static final boolean LEGACY_SERIALIZATION = Boolean.parseBoolean(System.getProperty(BackplaneSystemProps.BP_LEGACY_SERIALIZATION));
+
     private static class BpCompatObjectInputStream extends ObjectInputStream {
 
         public BpCompatObjectInputStream(InputStream in) throws IOException {
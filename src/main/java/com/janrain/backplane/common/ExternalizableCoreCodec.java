@@ -0,0 +1,358 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.common;
+
+import com.janrain.backplane.config.Admin;
+import com.janrain.backplane.config.BpServerConfig;
+import com.janrain.backplane.server1.BP1User;
+import com.janrain.backplane.server1.BusConfig1;
+import com.janrain.backplane.server2.*;
+import com.janrain.backplane.server2.oauth2.AuthorizationDecisionKey;
+import com.janrain.backplane.server2.oauth2.AuthorizationRequest;
+import com.janrain.commons.message.MessageField;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary format for ExternalizableCore instances:
+ *
+ * MAGIC, FORMAT_VERSION, class code [, class name], field count, then for each field:
+ * field code [, field name], value length + 1 (0 for null) and the UTF-8 value bytes. All numbers are varints.
+ *
+ * Class and field codes are assigned below and must never be changed or reused;
+ * fields and classes without a code are written by name.
+ */
+class ExternalizableCoreCodec {
+
+    // - PACKAGE
+
+    static final byte MAGIC = (byte) 0xBF;
+    static final byte FORMAT_VERSION = 1;
+
+    static boolean isEncoded(byte[] bytes) {
+        return bytes != null && bytes.length > 1 && bytes[0] == MAGIC;
+    }
+
+    static byte[] encode(ExternalizableCore obj) {
+        ClassCodec classCodec = getClassCodec(obj.getClass());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(MAGIC);
+        out.write(FORMAT_VERSION);
+        writeVarint(out, classCodec.classCode);
+        if (classCodec.classCode == 0) {
+            writeString(out, obj.getClass().getName());
+        }
+
+        // sorted, so that equal objects always encode to the same bytes
+        SortedMap<Integer,String> known = new TreeMap<Integer, String>();
+        SortedMap<String,String> unknown = new TreeMap<String, String>();
+        for (Map.Entry<String,String> entry : obj.entrySet()) {
+            Integer fieldCode = classCodec.fieldCodes.get(entry.getKey());
+            if (fieldCode != null) {
+                known.put(fieldCode, entry.getValue());
+            } else {
+                unknown.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        writeVarint(out, known.size() + unknown.size());
+        for (Map.Entry<Integer,String> entry : known.entrySet()) {
+            writeVarint(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        for (Map.Entry<String,String> entry : unknown.entrySet()) {
+            writeVarint(out, 0);
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    static ExternalizableCore decode(byte[] bytes) {
+        if (! isEncoded(bytes)) {
+            throw new BpSerializationException("not an encoded ExternalizableCore");
+        }
+        if (bytes[1] != FORMAT_VERSION) {
+            throw new BpSerializationException("unsupported ExternalizableCore encoding version: " + bytes[1]);
+        }
+        try {
+            int[] pos = new int[] {2};
+            int classCode = readVarint(bytes, pos);
+            ClassCodec classCodec;
+            if (classCode == 0) {
+                classCodec = getClassCodec(Class.forName(readString(bytes, pos)).asSubclass(ExternalizableCore.class));
+            } else {
+                classCodec = getClassCodec(classCode);
+            }
+
+            ExternalizableCore obj = classCodec.type.newInstance();
+            int fieldCount = readVarint(bytes, pos);
+            for (int i = 0; i < fieldCount; i++) {
+                int fieldCode = readVarint(bytes, pos);
+                String fieldName = fieldCode == 0 ? readString(bytes, pos) : classCodec.fieldNames.get(fieldCode);
+                if (fieldName == null) {
+                    throw new BpSerializationException("unknown field code " + fieldCode + " for " + classCodec.type.getName());
+                }
+                obj.put(fieldName, readString(bytes, pos));
+            }
+            return obj;
+        } catch (BpSerializationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BpSerializationException(e);
+        }
+    }
+
+    /**
+     * @return the class code of the type, 0 if it has none
+     */
+    static int getClassCode(Class<? extends ExternalizableCore> type) {
+        return getClassCodec(type).classCode;
+    }
+
+    /**
+     * @return the field codes of the type, by field name
+     */
+    static Map<String,Integer> getFieldCodes(Class<? extends ExternalizableCore> type) {
+        return Collections.unmodifiableMap(getClassCodec(type).fieldCodes);
+    }
+
+    // - PRIVATE
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Map<Integer, Class<? extends ExternalizableCore>> classesByCode = new HashMap<Integer, Class<? extends ExternalizableCore>>() {{
+        put(1, BpServerConfig.class);
+        put(2, Admin.class);
+        put(3, User.class);
+        put(4, BP1User.class);
+        put(5, BusConfig1.class);
+        put(6, com.janrain.backplane.server1.BackplaneMessage.class);
+        put(7, BusOwner.class);
+        put(8, Client.class);
+        put(9, BusConfig2.class);
+        put(10, Channel.class);
+        put(11, Token.class);
+        put(12, Grant.class);
+        put(13, AuthSession.class);
+        put(14, com.janrain.backplane.server2.BackplaneMessage.class);
+        put(15, AuthorizationRequest.class);
+        put(16, AuthorizationDecisionKey.class);
+    }};
+
+    /**
+     * Field codes; the fields of a class must have distinct codes.
+     * These were first derived from the enum ordinals (with the second enum of a class from 257 on), and are fixed since.
+     */
+    private static final Map<MessageField,Integer> fieldCodesByField = new HashMap<MessageField, Integer>() {{
+        // BpServerConfig
+        put(BpServerConfig.Field.ID, 1);
+        put(BpServerConfig.Field.DEBUG_MODE, 2);
+        put(BpServerConfig.Field.CONFIG_CACHE_AGE_SECONDS, 3);
+        put(BpServerConfig.Field.CLEANUP_INTERVAL_MINUTES, 4);
+        put(BpServerConfig.Field.DEFAULT_MESSAGES_MAX, 5);
+        put(BpServerConfig.Field.TOKEN_CACHE_MAX_MB, 6);
+
+        // User, Admin, BP1User, BusOwner, Client
+        put(User.Field.USER, 1);
+        put(User.Field.PWDHASH, 2);
+
+        // Client, after the User fields
+        put(Client.ClientField.SOURCE_URL, 257);
+        put(Client.ClientField.REDIRECT_URI, 258);
+
+        // BusConfig1
+        put(BusConfig1.Field.BUS_NAME, 1);
+        put(BusConfig1.Field.RETENTION_TIME_SECONDS, 2);
+        put(BusConfig1.Field.RETENTION_STICKY_TIME_SECONDS, 3);
+
+        // v1 BackplaneMessage
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.ID, 1);
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.CHANNEL_NAME, 2);
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.BUS, 3);
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.STICKY, 4);
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.EXPIRE, 5);
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.SOURCE, 6);
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.TYPE, 7);
+        put(com.janrain.backplane.server1.BackplaneMessage.Field.PAYLOAD, 8);
+
+        // BusConfig2
+        put(BusConfig2.Field.BUS_NAME, 1);
+        put(BusConfig2.Field.OWNER, 2);
+        put(BusConfig2.Field.RETENTION_TIME_SECONDS, 3);
+        put(BusConfig2.Field.RETENTION_STICKY_TIME_SECONDS, 4);
+
+        // Channel
+        put(Channel.ChannelField.ID, 1);
+        put(Channel.ChannelField.BUS, 2);
+        put(Channel.ChannelField.EXPIRE_SECONDS, 3);
+        put(Channel.ChannelField.MESSAGE_EXPIRE_DEFAULT_SECONDS, 4);
+        put(Channel.ChannelField.MESSAGE_EXPIRE_MAX_SECONDS, 5);
+
+        // Token
+        put(Token.TokenField.ID, 1);
+        put(Token.TokenField.TYPE, 2);
+        put(Token.TokenField.EXPIRES, 3);
+        put(Token.TokenField.SCOPE, 4);
+        put(Token.TokenField.ISSUED_TO_CLIENT_ID, 5);
+        put(Token.TokenField.CLIENT_SOURCE_URL, 6);
+        put(Token.TokenField.BACKING_GRANTS, 7);
+
+        // Grant
+        put(Grant.GrantField.ID, 1);
+        put(Grant.GrantField.TYPE, 2);
+        put(Grant.GrantField.ISSUED_BY_USER_ID, 3);
+        put(Grant.GrantField.ISSUED_TO_CLIENT_ID, 4);
+        put(Grant.GrantField.AUTHORIZED_SCOPES, 5);
+        put(Grant.GrantField.STATE, 6);
+        put(Grant.GrantField.TIME_UPDATE, 7);
+        put(Grant.GrantField.TIME_EXPIRE, 8);
+
+        // AuthSession
+        put(AuthSession.Field.COOKIE, 1);
+        put(AuthSession.Field.AUTH_USER, 2);
+        put(AuthSession.Field.EXPIRES, 3);
+
+        // v2 BackplaneMessage
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.ID, 1);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.CHANNEL, 2);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.BUS, 3);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.STICKY, 4);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.EXPIRE, 5);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.SOURCE, 6);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.TYPE, 7);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.MESSAGE_URL, 8);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.PAYLOAD, 9);
+        put(com.janrain.backplane.server2.BackplaneMessage.Field.FRAME, 10);
+
+        // AuthorizationRequest
+        put(AuthorizationRequest.Field.COOKIE, 1);
+        put(AuthorizationRequest.Field.EXPIRES, 2);
+        put(AuthorizationRequest.Field.CLIENT_ID, 3);
+        put(AuthorizationRequest.Field.RESPONSE_TYPE, 4);
+        put(AuthorizationRequest.Field.REDIRECT_URI, 5);
+        put(AuthorizationRequest.Field.SCOPE, 6);
+        put(AuthorizationRequest.Field.STATE, 7);
+
+        // AuthorizationDecisionKey
+        put(AuthorizationDecisionKey.Field.KEY, 1);
+        put(AuthorizationDecisionKey.Field.AUTH_COOKIE, 2);
+        put(AuthorizationDecisionKey.Field.EXPIRES, 3);
+    }};
+
+    private static final Map<Class<?>,ClassCodec> classCodecs = new ConcurrentHashMap<Class<?>, ClassCodec>();
+
+    private static class ClassCodec {
+
+        private final Class<? extends ExternalizableCore> type;
+        private final int classCode;
+        private final Map<String,Integer> fieldCodes = new HashMap<String, Integer>();
+        private final Map<Integer,String> fieldNames = new HashMap<Integer, String>();
+
+        private ClassCodec(Class<? extends ExternalizableCore> type, int classCode) throws Exception {
+            this.type = type;
+            this.classCode = classCode;
+
+            for (MessageField field : type.newInstance().getFields()) {
+                Integer fieldCode = fieldCodesByField.get(field);
+                if (fieldCode == null) continue;
+                String previous = fieldNames.put(fieldCode, field.getFieldName());
+                if (previous != null) {
+                    throw new BpSerializationException("duplicate field code " + fieldCode + " for " + type.getName() +
+                            ": " + previous + ", " + field.getFieldName());
+                }
+                fieldCodes.put(field.getFieldName(), fieldCode);
+            }
+        }
+    }
+
+    private static ClassCodec getClassCodec(Class<? extends ExternalizableCore> type) {
+        ClassCodec classCodec = classCodecs.get(type);
+        if (classCodec == null) {
+            int classCode = 0;
+            for (Map.Entry<Integer, Class<? extends ExternalizableCore>> entry : classesByCode.entrySet()) {
+                if (entry.getValue() == type) {
+                    classCode = entry.getKey();
+                    break;
+                }
+            }
+            try {
+                classCodec = new ClassCodec(type, classCode);
+            } catch (Exception e) {
+                throw new BpSerializationException(e);
+            }
+            classCodecs.put(type, classCodec);
+        }
+        return classCodec;
+    }
+
+    private static ClassCodec getClassCodec(int classCode) {
+        Class<? extends ExternalizableCore> type = classesByCode.get(classCode);
+        if (type == null) {
+            throw new BpSerializationException("unknown class code: " + classCode);
+        }
+        return getClassCodec(type);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] bytes, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= bytes.length || shift > 28) {
+                throw new BpSerializationException("malformed varint at " + pos[0]);
+            }
+            byte b = bytes[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+        } else {
+            byte[] utf8 = value.getBytes(UTF8);
+            writeVarint(out, utf8.length + 1);
+            out.write(utf8, 0, utf8.length);
+        }
+    }
+
+    private static String readString(byte[] bytes, int[] pos) {
+        int length = readVarint(bytes, pos) - 1;
+        if (length < 0) return null;
+        if (pos[0] + length > bytes.length) {
+            throw new BpSerializationException("truncated string at " + pos[0]);
+        }
+        String value = new String(bytes, pos[0], length, UTF8);
+        pos[0] += length;
+        return value;
+    }
+
+    private ExternalizableCoreCodec() { }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.common;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.JsonStringEncoder;
+import org.codehaus.jackson.map.JsonSerializable;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import java.io.IOException;
+
+public class JsonUtils {
+
+    // - PUBLIC
+
+    /**
+     * @return the shared ObjectMapper; it is thread-safe as long as its configuration is not changed
+     */
+    public static ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return the provided string escaped for inclusion in a JSON string value, without the enclosing quotes
+     */
+    public static String escape(String value) {
+        return new String(JsonStringEncoder.getInstance().quoteAsString(value));
+    }
+
+    /**
+     * JSON text that is written verbatim in place of a value when serialized with Jackson,
+     * e.g. message payloads that are already stored as (Jackson generated) JSON strings.
+     */
+    public static class RawJson implements JsonSerializable {
+
+        public RawJson(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public void serialize(JsonGenerator jgen, SerializerProvider provider) throws IOException {
+            if (json == null) {
+                jgen.writeNull();
+            } else {
+                jgen.writeRawValue(json);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+
+        private final String json;
+    }
+
+    // - PRIVATE
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private JsonUtils() { }
+}
@@ -22,8 +22,12 @@ import com.janrain.backplane.common.AuthException;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.HmacHashUtils;
 import com.janrain.backplane.dao.ServerDAOs;
+import com.janrain.backplane.redis.RedisEntityStore;
+import com.janrain.backplane.redis.RedisSubscriber;
 import com.janrain.backplane.server1.MessageProcessor;
 import com.janrain.backplane.server2.V2MessageProcessor;
+import com.janrain.backplane.server2.dao.BP2DAOs;
+import com.janrain.backplane.server2.dao.redis.RedisBackplaneMessageDAO;
 import com.janrain.commons.util.AwsUtility;
 import com.janrain.commons.util.InitSystemProps;
 import com.janrain.commons.util.Pair;
@@ -131,7 +135,7 @@ public class BackplaneConfig {
     private final String bpInstanceId;
 
     final MessageProcessor v1messageProcessor = new MessageProcessor();
-    final V2MessageProcessor v2messageProcessor = new V2MessageProcessor();
+    final Map<String, V2MessageProcessor> v2messageProcessors = createV2MessageProcessors();
 
     // Amazon specific instance-id value
     private static String EC2InstanceId = AwsUtility.retrieveEC2InstanceId();
@@ -179,6 +183,50 @@ public class BackplaneConfig {
         return new Pair<String, ExecutorService>(label, ping);
     }
 
+    private Pair<String, ExecutorService> createTokenCleanupTask() {
+        String label = "v2 token cleanup";
+        ScheduledExecutorService cleanup = Executors.newScheduledThreadPool(1);
+        cleanup.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BP2DAOs.getTokenDao().deleteExpiredTokens();
+                } catch (Exception e) {
+                    logger.error("error running token cleanup: " + e.getMessage(), e);
+                }
+            }
+        }, 60, 10, TimeUnit.SECONDS);
+        return new Pair<String, ExecutorService>(label, cleanup);
+    }
+
+    private Pair<String, ExecutorService> createLegacyListsIndexTask() {
+        String label = "legacy lists index";
+        ScheduledExecutorService index = Executors.newScheduledThreadPool(1);
+        index.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RedisEntityStore.indexLegacyLists();
+                } catch (Exception e) {
+                    logger.error("error indexing legacy lists: " + e.getMessage(), e);
+                }
+            }
+        }, 10, 60, TimeUnit.SECONDS);
+        return new Pair<String, ExecutorService>(label, index);
+    }
+
+    private Pair<String, ExecutorService> createSubscriberTask() {
+        String label = "redis subscriber";
+        ExecutorService subscriber = Executors.newSingleThreadExecutor();
+        subscriber.submit(new Runnable() {
+            @Override
+            public void run() {
+                RedisSubscriber.getInstance().run();
+            }
+        });
+        return new Pair<String, ExecutorService>(label, subscriber);
+    }
+
     private void addTask(Map<String, ExecutorService> backgroundServices, Pair<String, ExecutorService> nameAndService) {
         backgroundServices.put(nameAndService.getLeft(), nameAndService.getRight());
     }
@@ -186,11 +234,28 @@ public class BackplaneConfig {
     @PostConstruct
     private void init() {
         addTask(backgroundServices, createPingTask());
-        initZk("/v1_worker", v1messageProcessor);
-        initZk("/v2_worker", v2messageProcessor);
+        addTask(backgroundServices, createSubscriberTask());
+        addTask(backgroundServices, createTokenCleanupTask());
+        addTask(backgroundServices, createLegacyListsIndexTask());
+        initZk(Collections.singletonMap("/v1_worker", v1messageProcessor), false);
+        initZk(v2messageProcessors, true);
     }
 
-    private void initZk(String leaderPath, LeaderSelectorListener listener) {
+    /**
+     * @return a v2 message processor for each message queue partition, keyed by leader path
+     */
+    private static Map<String, V2MessageProcessor> createV2MessageProcessors() {
+        Map<String, V2MessageProcessor> processors = new LinkedHashMap<String, V2MessageProcessor>();
+        for (int partition = 0; partition < RedisBackplaneMessageDAO.getQueuePartitions(); partition++) {
+            processors.put(V2MessageProcessor.getLeaderPath(partition), new V2MessageProcessor(partition));
+        }
+        return processors;
+    }
+
+    /**
+     * @param requeue if true, leader selectors re-enter the election after their listener gives up leadership
+     */
+    private void initZk(Map<String, ? extends LeaderSelectorListener> listenersByLeaderPath, boolean requeue) {
        try {
             String zkServerConfig = System.getProperty(BackplaneSystemProps.ZOOKEEPER_SERVERS);
             if (StringUtils.isEmpty(zkServerConfig)) {
@@ -199,8 +264,13 @@ public class BackplaneConfig {
             }
             CuratorFramework client = CuratorFrameworkFactory.newClient(zkServerConfig, new ExponentialBackoffRetry(50, 20));
             client.start();
-            LeaderSelector leaderSelector = new LeaderSelector(client, leaderPath, listener);
-            leaderSelector.start();
+            for (Map.Entry<String, ? extends LeaderSelectorListener> entry : listenersByLeaderPath.entrySet()) {
+                LeaderSelector leaderSelector = new LeaderSelector(client, entry.getKey(), entry.getValue());
+                if (requeue) {
+                    leaderSelector.autoRequeue();
+                }
+                leaderSelector.start();
+            }
             // todo: review, the following was being set only for bp2 message processor
             com.janrain.backplane.redis.Redis.getInstance().setActiveRedisInstance(client);
         } catch (Exception e) {
@@ -211,6 +281,7 @@ public class BackplaneConfig {
     @PreDestroy
     private void cleanup() {
         Metrics.shutdown();
+        RedisSubscriber.getInstance().stop();
         for (Map.Entry<String, ExecutorService> serviceEntry : backgroundServices.entrySet()) {
             shutdownExecutor(serviceEntry.getKey(), serviceEntry.getValue());
         }
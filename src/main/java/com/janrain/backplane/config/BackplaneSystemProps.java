@@ -34,6 +34,11 @@ public class BackplaneSystemProps extends InitSystemProps {
     public static final String REDIS_SERVER_PRIMARY = "REDIS_SERVER_PRIMARY";
     public static final String REDIS_SERVER_READS = "REDIS_SERVER_READS";
     public static final String IP_WHITE_LIST = "IP_WHITE_LIST";
+    public static final String BP_LEGACY_SERIALIZATION = "BP_LEGACY_SERIALIZATION";
+    public static final String BP_LEGACY_LISTS_REMOVE = "BP_LEGACY_LISTS_REMOVE";
+    public static final String BP_MESSAGE_BATCH_MAX = "BP_MESSAGE_BATCH_MAX";
+    public static final String BP_MESSAGE_QUEUE_PARTITIONS = "BP_MESSAGE_QUEUE_PARTITIONS";
+    public static final String REDIS_LEAK_SAMPLE_RATE = "REDIS_LEAK_SAMPLE_RATE";
     public static final String ADMIN_USER = "bpadmin";
     public static final String BPSERVER_CONFIG_KEY = "bpserverconfig";
 
@@ -46,6 +51,21 @@ public class BackplaneSystemProps extends InitSystemProps {
         return "n/a";
     }
 
+    /**
+     * @return the integer value of the system property, or defaultValue if it is not set or invalid;
+     *         values below minValue are raised to minValue
+     */
+    public static int getIntProperty(String paramName, int defaultValue, int minValue) {
+        String value = System.getProperty(paramName);
+        if (StringUtils.isBlank(value)) return defaultValue;
+        try {
+            return Math.max(minValue, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn("invalid " + paramName + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     public BackplaneSystemProps(String log4jFile) {
         super(log4jFile);
 
@@ -54,6 +74,11 @@ public class BackplaneSystemProps extends InitSystemProps {
         load(REDIS_SERVER_PRIMARY, true);
         load(REDIS_SERVER_READS, true);
         load(IP_WHITE_LIST, false);
+        load(BP_LEGACY_SERIALIZATION, false);
+        load(BP_LEGACY_LISTS_REMOVE, false);
+        load(BP_MESSAGE_BATCH_MAX, false);
+        load(BP_MESSAGE_QUEUE_PARTITIONS, false);
+        load(REDIS_LEAK_SAMPLE_RATE, false);
 
     }
 
@@ -39,6 +39,10 @@ public class BpServerConfig extends ExternalizableCore {
         return Long.parseLong(get(Field.CONFIG_CACHE_AGE_SECONDS));
     }
 
+    public long getTokenCacheMaxMB() {
+        return Long.parseLong(get(Field.TOKEN_CACHE_MAX_MB));
+    }
+
     public String toString() {
         ObjectMapper mapper = new ObjectMapper();
         try {
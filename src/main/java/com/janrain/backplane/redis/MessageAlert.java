@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * New message notification, published by the message processors on the "alerts" channel
+ * once a message is made available, in the form: "version bus channel messageId".
+ *
+ * Legacy alerts carry only the message ID; for these the version, bus and channel are null,
+ * and listeners should treat them as a possible match for everything.
+ */
+public class MessageAlert {
+
+    // - PUBLIC
+
+    public static final String CHANNEL = "alerts";
+
+    public static interface Listener {
+        /** Called from the subscriber thread, must not block. */
+        void onAlert(MessageAlert alert);
+    }
+
+    public static String encode(String version, String bus, String channel, String messageId) {
+        return version + " " + bus + " " + channel + " " + messageId;
+    }
+
+    public static @Nullable MessageAlert decode(String alert) {
+        if (StringUtils.isBlank(alert)) return null;
+        String[] segs = alert.split(" ");
+        if (segs.length == 4) {
+            return new MessageAlert(segs[0], segs[1], segs[2], segs[3]);
+        } else if (segs.length == 1) {
+            return new MessageAlert(null, null, null, segs[0]);
+        } else {
+            logger.warn("invalid message alert: " + alert);
+            return null;
+        }
+    }
+
+    /**
+     * Registers a listener for all decoded message alerts received by this node.
+     */
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public @Nullable String getVersion() {
+        return version;
+    }
+
+    public @Nullable String getBus() {
+        return bus;
+    }
+
+    public @Nullable String getChannel() {
+        return channel;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return true if this alert may be about a message of the given version, i.e. versions match or the alert is legacy
+     */
+    public boolean isVersion(String version) {
+        return this.version == null || this.version.equals(version);
+    }
+
+    public boolean isLegacy() {
+        return version == null;
+    }
+
+    @Override
+    public String toString() {
+        return encode(version, bus, channel, messageId);
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(MessageAlert.class);
+
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    static {
+        RedisSubscriber.getInstance().addListener(CHANNEL, new RedisSubscriber.Listener() {
+            @Override
+            public void onMessage(String channel, String message) {
+                MessageAlert alert = decode(message);
+                if (alert == null) return;
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onAlert(alert);
+                    } catch (Exception e) {
+                        logger.warn("error dispatching message alert " + alert + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        });
+    }
+
+    private final String version;
+    private final String bus;
+    private final String channel;
+    private final String messageId;
+
+    private MessageAlert(String version, String bus, String channel, String messageId) {
+        this.version = version;
+        this.bus = bus;
+        this.channel = channel;
+        this.messageId = messageId;
+    }
+}
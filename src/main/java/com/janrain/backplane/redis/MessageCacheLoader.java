@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import com.janrain.backplane.common.BpSerialUtils;
+import com.janrain.backplane.common.DateTimeUtils;
+import com.janrain.backplane.config.BackplaneConfig;
+import com.janrain.backplane.server2.dao.MessageCache;
+import com.janrain.commons.message.Message;
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Keeps a node-local MessageCache filled with the last few minutes of messages,
+ * by tailing a messages index (sorted set of "bus channel id" entries, scored by message time).
+ *
+ * The index is read right after each message alert for the loader's version,
+ * and at least once every UPDATE_INTERVAL_MILLIS in case alerts are missed.
+ */
+public abstract class MessageCacheLoader<T extends Message> implements MessageAlert.Listener {
+
+    // - PUBLIC
+
+    public MessageCacheLoader(String version, String messagesIndexKey, MessageCache<T> cache, long windowMillis) {
+        this.version = version;
+        this.messagesIndexKey = messagesIndexKey;
+        this.cache = cache;
+        this.windowMillis = windowMillis;
+    }
+
+    public MessageCache<T> getCache() {
+        return cache;
+    }
+
+    /**
+     * Starts the loader thread and registers it for message alerts.
+     */
+    public void start() {
+        MessageAlert.addListener(this);
+        ScheduledExecutorService loader = Executors.newScheduledThreadPool(1);
+        loader.submit(new Runnable() {
+            @Override
+            public void run() {
+                runLoader();
+            }
+        });
+        BackplaneConfig.addToBackgroundServices(version + " message cache", loader);
+    }
+
+    @Override
+    public void onAlert(MessageAlert alert) {
+        if (alert.isVersion(version)) {
+            synchronized (this) {
+                signalled = true;
+                if (alertedMessageId == null || alertedMessageId.compareTo(alert.getMessageId()) < 0) {
+                    alertedMessageId = alert.getMessageId();
+                    alertedAt = System.currentTimeMillis();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // - PROTECTED
+
+    protected abstract byte[] getMessageKey(String messageId);
+
+    /**
+     * Called from the loader thread after new messages were added to the cache.
+     */
+    protected void messagesAdded(List<T> messages) { }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(MessageCacheLoader.class);
+
+    private static final long UPDATE_INTERVAL_MILLIS = 1000l;
+    private static final long ERROR_DELAY_MILLIS = 2000l;
+    private static final long REPLICATION_RETRY_MILLIS = 20l;
+
+    private final String version;
+    private final String messagesIndexKey;
+    private final MessageCache<T> cache;
+    private final long windowMillis;
+
+    private boolean signalled = false;
+    private String alertedMessageId;
+    private long alertedAt;
+
+    /** score (message time) of the last message loaded into the cache, -1 before the cache is initialized */
+    private long lastLoadedTime = -1;
+    private String lastLoadedId = "";
+
+    private void runLoader() {
+        logger.info(version + " message cache loader started");
+        try {
+            while (! Thread.currentThread().isInterrupted()) {
+                long delay = UPDATE_INTERVAL_MILLIS;
+                try {
+                    update();
+                } catch (Exception e) {
+                    logger.warn("error updating " + version + " message cache: " + e.getMessage());
+                    delay = ERROR_DELAY_MILLIS;
+                }
+                synchronized (this) {
+                    if (alertedMessageId != null && alertedMessageId.compareTo(lastLoadedId) > 0 &&
+                        System.currentTimeMillis() - alertedAt < UPDATE_INTERVAL_MILLIS) {
+                        // alerted message not loaded yet, the read replica may be lagging behind
+                        delay = REPLICATION_RETRY_MILLIS;
+                    }
+                    if (! signalled) {
+                        wait(delay);
+                    }
+                    signalled = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        } finally {
+            logger.info(version + " message cache loader stopped");
+        }
+    }
+
+    private void update() throws Exception {
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getReadJedis();
+
+            long now = System.currentTimeMillis();
+            if (lastLoadedTime < 0) {
+                long windowStart = now - windowMillis;
+                cache.reset(DateTimeUtils.ISO8601.get().format(new Date(windowStart)));
+                lastLoadedTime = windowStart - 1;
+            }
+            // message times are unique (total order guarantee), so all new messages score higher
+            double minScore = lastLoadedTime + 1;
+
+            Set<String> messagesMeta = jedis.zrangeByScore(messagesIndexKey, minScore, Double.POSITIVE_INFINITY);
+            List<T> messages = new ArrayList<T>();
+            if (messagesMeta != null && ! messagesMeta.isEmpty()) {
+                List<byte[]> keys = new ArrayList<byte[]>();
+                String lastMessageId = null;
+                for (String meta : messagesMeta) {
+                    String[] segs = meta.split(" ");
+                    lastMessageId = segs[segs.length - 1];
+                    keys.add(getMessageKey(lastMessageId));
+                }
+                for (byte[] messageBytes : jedis.mget(keys.toArray(new byte[keys.size()][]))) {
+                    // missing messages have already expired
+                    if (messageBytes != null) {
+                        //noinspection unchecked
+                        messages.add((T) BpSerialUtils.deserialize(messageBytes));
+                    }
+                }
+                Date lastMessageDate = DateTimeUtils.ISO8601.get().parse(lastMessageId.substring(0, lastMessageId.indexOf("Z") + 1));
+                lastLoadedTime = Math.max(lastLoadedTime, lastMessageDate.getTime());
+                lastLoadedId = lastMessageId;
+            }
+
+            // add() also marks the cache as up to date, even if there are no new messages
+            cache.add(messages);
+            cache.removeUpTo(DateTimeUtils.ISO8601.get().format(new Date(now - windowMillis)));
+
+            if (! messages.isEmpty()) {
+                messagesAdded(messages);
+            }
+        } catch (JedisConnectionException jce) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw jce;
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes expired messages from the message indexes, in small pipelined chunks.
+ *
+ * Expired entries are found through an expiry index: a sorted set with the same "bus channel id" entries
+ * as the messages index, scored by message expiration time.
+ * Entries missing from the expiry index (e.g. inserted before it existed) are found by a slow sweep of the messages index,
+ * checking a chunk of message bodies for existence on each run.
+ */
+public abstract class MessageIndexReaper {
+
+    // - PUBLIC
+
+    public MessageIndexReaper(String version, String messagesIndexKey, String expiryIndexKey) {
+        this.version = version;
+        this.messagesIndexKey = messagesIndexKey;
+        this.expiryIndexKey = expiryIndexKey;
+        String type = MessageIndexReaper.class.getName().replace(".", "_");
+        this.expiredRemoved = Metrics.newCounter(new MetricName(version, type, "expired_removed"));
+        this.orphansRemoved = Metrics.newCounter(new MetricName(version, type, "orphans_removed"));
+        Metrics.newGauge(new MetricName(version, type, "expiry_lag_millis"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return lagMillis;
+            }
+        });
+        Metrics.newGauge(new MetricName(version, type, "sweep_cursor"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return (long) sweepCursor;
+            }
+        });
+    }
+
+    /**
+     * Removes the messages that are due according to the expiry index, up to MAX_CHUNKS_PER_RUN chunks,
+     * then sweeps the next chunk of the messages index for messages whose bodies are gone.
+     */
+    public void run() {
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getWriteJedis();
+            int expired = 0;
+            for (int chunks = 0; chunks < MAX_CHUNKS_PER_RUN; chunks++) {
+                int removed = removeExpired(jedis);
+                expired += removed;
+                if (removed < CHUNK_SIZE) break;
+            }
+            int orphans = sweep(jedis);
+            if (expired > 0 || orphans > 0) {
+                logger.info("removed " + expired + " expired and " + orphans + " orphaned " + version + " messages from indexes");
+            }
+        } catch (JedisConnectionException jce) {
+            logger.warn("error removing expired " + version + " messages: " + jce.getMessage());
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+        } catch (Exception e) {
+            logger.warn("error removing expired " + version + " messages: " + e.getMessage(), e);
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
+    }
+
+    // - PROTECTED
+
+    /**
+     * Adds the commands removing the message from the version specific (bus, channel) indexes, and its body, to the pipeline.
+     */
+    protected abstract void removeMessage(Pipeline pipeline, String bus, String channel, String messageId);
+
+    protected abstract byte[] getMessageKey(String messageId);
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(MessageIndexReaper.class);
+
+    private static final int CHUNK_SIZE = 500;
+    private static final int MAX_CHUNKS_PER_RUN = 20;
+
+    private final String version;
+    private final String messagesIndexKey;
+    private final String expiryIndexKey;
+
+    private final Counter expiredRemoved;
+    private final Counter orphansRemoved;
+
+    /** how late the oldest expired entry was, at the last run */
+    private volatile long lagMillis = 0;
+
+    /** message time / score from which the next sweep chunk starts */
+    private volatile double sweepCursor = 0;
+
+    private int removeExpired(Jedis jedis) {
+        long now = System.currentTimeMillis();
+        Set<Tuple> due = jedis.zrangeByScoreWithScores(expiryIndexKey, 0, now, 0, CHUNK_SIZE);
+        lagMillis = due.isEmpty() ? 0 : now - (long) due.iterator().next().getScore();
+        if (due.isEmpty()) return 0;
+
+        Pipeline pipeline = jedis.pipelined();
+        for (Tuple entry : due) {
+            remove(pipeline, entry.getElement());
+        }
+        pipeline.sync();
+        expiredRemoved.inc(due.size());
+        return due.size();
+    }
+
+    private int sweep(Jedis jedis) {
+        Set<Tuple> chunk = jedis.zrangeByScoreWithScores(messagesIndexKey, sweepCursor, Double.POSITIVE_INFINITY, 0, CHUNK_SIZE);
+        if (chunk.size() < CHUNK_SIZE) {
+            // reached the end of the index, start over on the next run
+            sweepCursor = 0;
+        }
+        if (chunk.isEmpty()) return 0;
+
+        List<String> entries = new ArrayList<String>(chunk.size());
+        List<Response<Boolean>> exists = new ArrayList<Response<Boolean>>(chunk.size());
+        Pipeline pipeline = jedis.pipelined();
+        for (Tuple entry : chunk) {
+            if (chunk.size() == CHUNK_SIZE) {
+                // message times are unique, continue right after this one
+                sweepCursor = entry.getScore() + 1;
+            }
+            String[] segs = entry.getElement().split(" ");
+            if (segs.length != 3) continue;
+            entries.add(entry.getElement());
+            exists.add(pipeline.exists(getMessageKey(segs[2])));
+        }
+        pipeline.sync();
+
+        int removed = 0;
+        pipeline = jedis.pipelined();
+        for (int i = 0; i < entries.size(); i++) {
+            if (! exists.get(i).get()) {
+                remove(pipeline, entries.get(i));
+                removed++;
+            }
+        }
+        pipeline.sync();
+        orphansRemoved.inc(removed);
+        return removed;
+    }
+
+    private void remove(Pipeline pipeline, String entry) {
+        pipeline.zrem(messagesIndexKey, entry);
+        pipeline.zrem(expiryIndexKey, entry);
+        String[] segs = entry.split(" ");
+        if (segs.length == 3) {
+            removeMessage(pipeline, segs[0], segs[1], segs[2]);
+        } else {
+            logger.warn("invalid " + version + " message index entry: " + entry);
+        }
+    }
+}
@@ -17,7 +17,6 @@
 package com.janrain.backplane.redis;
 
 import com.janrain.backplane.config.BackplaneSystemProps;
-import com.janrain.commons.util.Pair;
 import com.netflix.curator.framework.CuratorFramework;
 import com.netflix.curator.framework.recipes.cache.ChildData;
 import com.netflix.curator.framework.recipes.cache.PathChildrenCache;
@@ -32,14 +31,14 @@ import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Tom Raney
@@ -63,6 +62,17 @@ public class Redis implements PathChildrenCacheListener {
         return getJedisFromPool(getWritePool());
     }
 
+    /**
+     * @return a new, dedicated (not pooled) connection to the primary server, for long-lived pub/sub subscriptions;
+     * the caller is responsible for disconnecting it
+     */
+    public Jedis createSubscriberJedis() {
+        String[] hostAndPort = getWritePool().getName().split(":");
+        Jedis jedis = new Jedis(hostAndPort[0], Integer.parseInt(hostAndPort[1]), 0);
+        jedis.connect();
+        return jedis;
+    }
+
     public void releaseToPool(Jedis jedis) {
         releaseToPool(jedis, false);
     }
@@ -73,21 +83,12 @@ public class Redis implements PathChildrenCacheListener {
 
     public void releaseToPool(Jedis jedis, boolean isBroken) {
         if (jedis == null) return;
-        logger.debug("returning jedis: " + jedis.toString() + " to pool -> isBroken: " + isBroken);
-        JedisPool pool = checkedOutJedises.get(jedis);
-        if (pool != null) {
-            synchronized (jedis) {
-                if (isBroken) {
-                    pool.returnBrokenResource(jedis);
-                } else {
-                    pool.returnResource(jedis);
-                }
-                checkedOutJedises.remove(jedis);
-            }
-        } else {
-            logger.warn("attempted to return a broken jedis: " + jedis.toString() + " that wasn't checked out");
+        if (logger.isDebugEnabled()) {
+            logger.debug("returning jedis: " + jedis.toString() + " to pool -> isBroken: " + isBroken);
+        }
+        if (! RedisPool.release(jedis, isBroken)) {
+            logger.warn("attempted to return a jedis: " + jedis.toString() + " that wasn't checked out");
         }
-
     }
 
     public void set(byte[] key, byte[] value) {
@@ -95,6 +96,10 @@ public class Redis implements PathChildrenCacheListener {
 
         try {
             jedis.set(key,value);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
             releaseToPool(jedis);
         }
@@ -104,6 +109,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getWriteJedis();
         try {
             jedis.del(key);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -113,6 +122,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getWriteJedis();
         try {
             jedis.setex(key, seconds, value);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
             releaseToPool(jedis);
         }
@@ -130,6 +143,10 @@ public class Redis implements PathChildrenCacheListener {
             } else {
                 jedis.setex(key, seconds, value);
             }
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -139,6 +156,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getWriteJedis();
         try {
             jedis.append(key, value);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -148,6 +169,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getWriteJedis();
         try {
             return jedis.rpush(key, string);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -157,6 +182,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.llen(key);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -166,6 +195,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.get(key);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -175,6 +208,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.get(key);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -184,6 +221,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.mget(keys);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -193,6 +234,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.lpop(key);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -202,6 +247,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.lrange(key, start, end);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -211,6 +260,10 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.zrangeByScore(key, min, max);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
         	releaseToPool(jedis);
         }
@@ -220,8 +273,12 @@ public class Redis implements PathChildrenCacheListener {
         Jedis jedis = getReadJedis();
         try {
             return jedis.zcard(key);
+        } catch (JedisConnectionException e) {
+            releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
         } finally {
-            getReadPool().getRight().returnResource(jedis);
+            releaseToPool(jedis);
         }
     }
 
@@ -305,10 +362,7 @@ public class Redis implements PathChildrenCacheListener {
     public void ping() {
 
         Jedis jedisWrite = null;
-        Jedis jedisRead = null;
-
         String replyJedisWrite = "ERROR";
-        String replyJedisRead = "ERROR";
 
         try {
             jedisWrite = this.getWriteJedis();
@@ -321,15 +375,29 @@ public class Redis implements PathChildrenCacheListener {
             releaseToPool(jedisWrite);
         }
 
-        try {
-            jedisRead = this.getReadJedis();
-            replyJedisRead = jedisRead.ping();
-        }   catch (Exception e) {
-            // something bad
-            logger.warn("error during ping");
-        } finally {
-            logger.info("PING " + System.getProperty(BackplaneSystemProps.REDIS_SERVER_READS) + " (" + BackplaneSystemProps.REDIS_SERVER_READS + ") -> " + replyJedisRead);
-            releaseToPool(jedisRead);
+        // ping every replica, also probing ejected ones for re-admission
+        for (RedisPool pool : poolForReads) {
+            Jedis jedisRead = null;
+            String replyJedisRead = "ERROR";
+            try {
+                jedisRead = getJedisFromPool(pool);
+                replyJedisRead = jedisRead.ping();
+            } catch (Exception e) {
+                // something bad
+                logger.warn("error during ping");
+                releaseBrokenResourceToPool(jedisRead);
+                jedisRead = null;
+            } finally {
+                logger.info("PING " + pool.getName() + " (" + BackplaneSystemProps.REDIS_SERVER_READS + ") -> " + replyJedisRead +
+                        (pool.isHealthy() ? "" : ", ejected") + ", latency ewma " + pool.getLatencyEwmaNanos() / 1000 + "us");
+                releaseToPool(jedisRead);
+            }
+        }
+
+        if (LEAK_SAMPLE_RATE > 0) {
+            for (RedisPool pool : getAllPools()) {
+                pool.checkLeaks(MAX_LEASE_MILLIS);
+            }
         }
 
     }
@@ -341,8 +409,19 @@ public class Redis implements PathChildrenCacheListener {
     //private String[] currentRedisServerForReads;
     private String currentRedisServerForWrites;
 
-    private final Pair<String,JedisPool> poolForWrites;
-    private final ArrayList<Pair<String,JedisPool>> poolForReads = new ArrayList<Pair<String, JedisPool>>();
+    private final RedisPool poolForWrites;
+    private final ArrayList<RedisPool> poolForReads = new ArrayList<RedisPool>();
+
+    /** one in LEAK_SAMPLE_RATE leases is checked for leaks, 0 to disable */
+    private static final int LEAK_SAMPLE_RATE = BackplaneSystemProps.getIntProperty(BackplaneSystemProps.REDIS_LEAK_SAMPLE_RATE, 0, 0);
+    private static final long MAX_LEASE_MILLIS = 60000l;
+
+    private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
 
     private static Redis instance = new Redis();
     private final String REDIS_LOCK = "/redislock";
@@ -378,7 +457,7 @@ public class Redis implements PathChildrenCacheListener {
             }
         }
 
-        poolForWrites = new Pair<String, JedisPool>(args[0] + ":" + port, new JedisPool(jedisPoolConfig, args[0], port));
+        poolForWrites = new RedisPool(jedisPoolConfig, args[0], port, LEAK_SAMPLE_RATE);
 
         redisServerConfig = System.getProperty(BackplaneSystemProps.REDIS_SERVER_READS);
 
@@ -395,46 +474,73 @@ public class Redis implements PathChildrenCacheListener {
                 try {
                     port = Integer.parseInt(args[1]);
                     //currentRedisServerForReads[i] = args[0];
-                    poolForReads.add(new Pair<String, JedisPool>(args[0] + ":" + port, new JedisPool(jedisPoolConfig, args[0], port)));
+                    poolForReads.add(new RedisPool(jedisPoolConfig, args[0], port, LEAK_SAMPLE_RATE));
                 } catch (NumberFormatException e) {
                     logger.error("invalid Redis server configuration: " + redisServerConfig);
                     System.exit(1);
                 }
             }
         }
-
     }
 
     
-    private Pair<String, JedisPool> getWritePool() {
+    private RedisPool getWritePool() {
         return poolForWrites;
     }
 
-    private Pair<String, JedisPool> getReadPool() {
-        Random random = new Random();
-        return poolForReads.get(random.nextInt(poolForReads.size()));
+    /**
+     * @return the healthy read replica with the lower load score out of two picked at random;
+     *         any healthy replica if both are ejected, an ejected one due for a probe if none is healthy,
+     *         and the primary server as a last resort
+     */
+    private RedisPool getReadPool() {
+        int replicas = poolForReads.size();
+        Random r = random.get();
+        RedisPool first = poolForReads.get(r.nextInt(replicas));
+        RedisPool second = replicas == 1 ? first : poolForReads.get(r.nextInt(replicas));
+        if (first.isHealthy() && second.isHealthy()) {
+            return second.getLoadScore() < first.getLoadScore() ? second : first;
+        } else if (first.isHealthy()) {
+            return first;
+        } else if (second.isHealthy()) {
+            return second;
+        }
+        for (RedisPool pool : poolForReads) {
+            if (pool.isHealthy()) return pool;
+        }
+        for (RedisPool pool : poolForReads) {
+            if (pool.tryProbe()) return pool;
+        }
+        return poolForWrites;
     }
 
-    private Jedis getJedisFromPool(Pair<String,JedisPool> poolInfo) {
+    private Jedis getJedisFromPool(RedisPool pool) {
         try {
-            logger.debug("attempting to get resource from pool");
-            Jedis jedis = poolInfo.getRight().getResource();
-            synchronized (jedis) {
-                checkedOutJedises.put(jedis, poolInfo.getRight());
-                logger.debug("jedis " + jedis.getClient().getHost() + " checked out from pool " + poolInfo.getLeft());
+            Jedis jedis = pool.lease();
+            if (logger.isDebugEnabled()) {
+                logger.debug("jedis " + jedis.getClient().getHost() + " checked out from pool " + pool.getName());
             }
             return jedis;
         } catch (RuntimeException e) {
-            logger.warn("error retrieving connection to redis pool " + poolInfo.getLeft() + " : " + e.getMessage());
+            logger.warn("error retrieving connection to redis pool " + pool.getName() + " : " + e.getMessage());
             throw e;
         }
     }
 
-    private ConcurrentHashMap<Jedis, JedisPool> checkedOutJedises = new ConcurrentHashMap<Jedis, JedisPool>();
-    private final Gauge checkedOutJedisesCounterGauge = Metrics.newGauge(new MetricName("redis", this.getClass().getName().replace(".","_"), "map_db_connections"), new Gauge<Integer>() {
+    private Set<RedisPool> getAllPools() {
+        Set<RedisPool> pools = new HashSet<RedisPool>(poolForReads);
+        pools.add(poolForWrites);
+        return pools;
+    }
+
+    private final Gauge checkedOutJedisesCounterGauge = Metrics.newGauge(new MetricName("redis", this.getClass().getName().replace(".","_"), "map_db_connections"), new Gauge<Long>() {
         @Override
-        public Integer value() {
-            return checkedOutJedises.size();
+        public Long value() {
+            long outstanding = 0;
+            for (RedisPool pool : getAllPools()) {
+                outstanding += pool.getOutstanding();
+            }
+            return outstanding;
         }
     });
 
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import com.janrain.backplane.common.BpSerialUtils;
+import com.janrain.backplane.common.ExternalizableCore;
+import com.janrain.backplane.config.BackplaneSystemProps;
+import com.janrain.backplane.config.BpServerConfig;
+import com.janrain.backplane.dao.ServerDAOs;
+import com.janrain.backplane.server2.dao.ConfigLRUCache;
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keyed entity storage: each object is stored once, under keyPrefix + ID, and its ID is kept in a set of all IDs
+ * and in any number of secondary index sets, so that listing all objects or looking them up by an indexed attribute
+ * costs O(result) instead of a scan of all objects.
+ *
+ * Index set keys are "idx_" + keyPrefix + ":all" and "idx_" + keyPrefix + ":" + index name + ":" + value;
+ * key prefixes and index names don't contain ':', so they can't collide with each other or with entity keys.
+ *
+ * Optionally, objects are read through a node-local cache, see RedisEntityStore(String, byte[], boolean).
+ *
+ * Objects found in a legacy list of serialized copies (the previous storage format) are indexed in the background,
+ * see indexLegacyLists(). Writes keep the list up to date, for nodes still running the previous version, only until
+ * the whole list has been indexed; objects written after that are not visible to the previous version's listings.
+ * If the BP_LEGACY_LISTS_REMOVE system property is set to true, indexed entries are removed from the list.
+ */
+public abstract class RedisEntityStore<T extends ExternalizableCore> {
+
+    // - PUBLIC
+
+    /**
+     * @param keyPrefix prefix of the object keys, e.g. "v2_bus_"
+     * @param legacyListKey list of serialized objects to migrate from, or null
+     */
+    public RedisEntityStore(String keyPrefix, byte[] legacyListKey) {
+        this(keyPrefix, legacyListKey, false);
+    }
+
+    /**
+     * @param cached if true, get() reads through a size-bounded node-local cache, for rarely changing configuration objects.
+     *               Entries are invalidated on all nodes through pub/sub when written through any store with the same
+     *               key prefix, and expire after the server config's max cache age, in case an invalidation is missed.
+     *               Cache misses are read from the primary server, so a lagging replica can't undo an invalidation.
+     */
+    public RedisEntityStore(String keyPrefix, byte[] legacyListKey, boolean cached) {
+        this.keyPrefix = keyPrefix;
+        this.legacyListKey = legacyListKey;
+        this.allIdsKey = "idx_" + keyPrefix + ":all";
+        if (cached) {
+            this.cache = new ConfigLRUCache<T>(CACHE_MAX_BYTES, getCacheMaxAgeMillis());
+            this.invalidationsChannel = "config_invalidations_" + keyPrefix;
+            RedisSubscriber.getInstance().addListener(invalidationsChannel, new RedisSubscriber.Listener() {
+                @Override
+                public void onMessage(String channel, String id) {
+                    cache.invalidate(id);
+                }
+            });
+        } else {
+            this.cache = null;
+            this.invalidationsChannel = null;
+        }
+        if (legacyListKey != null) {
+            legacyListStores.add(this);
+        }
+    }
+
+    public byte[] getKey(String id) {
+        return (keyPrefix + id).getBytes();
+    }
+
+    /**
+     * Indexes the objects appended to the legacy lists of all stores since the previous call,
+     * and the whole lists on the first call; run periodically by a background task.
+     */
+    public static void indexLegacyLists() {
+        for (RedisEntityStore<?> store : legacyListStores) {
+            try {
+                store.indexLegacyList();
+            } catch (Exception e) {
+                logger.error("error indexing legacy list " + new String(store.legacyListKey) + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    public T get(String id) {
+        if (cache == null) {
+            byte[] bytes = Redis.getInstance().get(getKey(id));
+            return bytes == null ? null : deserialize(bytes);
+        }
+
+        return cache.get(id, new ConfigLRUCache.Loader<T>() {
+            @Override
+            public T load(String id) {
+                Jedis jedis = null;
+                try {
+                    jedis = Redis.getInstance().getWriteJedis();
+                    byte[] bytes = jedis.get(getKey(id));
+                    return bytes == null ? null : deserialize(bytes);
+                } finally {
+                    Redis.getInstance().releaseToPool(jedis);
+                }
+            }
+        });
+    }
+
+    public List<T> getAll() {
+        return getByIdsSet(allIdsKey, false);
+    }
+
+    public List<T> getByIndex(String indexName, String value) {
+        return getByIndex(indexName, value, false);
+    }
+
+    /**
+     * @param fromPrimary if true, read from the primary server instead of a (possibly lagging) read replica,
+     *                    e.g. to build a view that is cached until the next invalidation
+     */
+    public List<T> getByIndex(String indexName, String value, boolean fromPrimary) {
+        String indexKey = getIndexKey(indexName, value);
+        List<T> result = new ArrayList<T>();
+        for (T obj : getByIdsSet(indexKey, fromPrimary)) {
+            // nodes running the previous version don't update the indexes
+            if (getIndexKeys(obj).contains(indexKey)) {
+                result.add(obj);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the object and adds it to the indexes; for an existing object, also removes it from indexes
+     * it no longer belongs to.
+     */
+    public void persist(T obj) {
+        write(obj.getIdValue(), obj);
+    }
+
+    /**
+     * @return the deleted object, or null if it didn't exist
+     */
+    public T delete(String id) {
+        return write(id, null);
+    }
+
+    // - PROTECTED
+
+    protected abstract T deserialize(byte[] bytes);
+
+    /**
+     * @return the keys of the secondary index sets the object belongs to, built with getIndexKey(indexName, value)
+     */
+    protected Set<String> getIndexKeys(T obj) {
+        return new HashSet<String>();
+    }
+
+    protected String getIndexKey(String indexName, String value) {
+        return "idx_" + keyPrefix + ":" + indexName + ":" + value;
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(RedisEntityStore.class);
+
+    private static final int CHUNK_SIZE = 100;
+    private static final long CACHE_MAX_BYTES = 10 * 1024 * 1024;
+    private static final boolean REMOVE_LEGACY_LISTS = Boolean.parseBoolean(System.getProperty(BackplaneSystemProps.BP_LEGACY_LISTS_REMOVE));
+    private static final List<RedisEntityStore<?>> legacyListStores = new CopyOnWriteArrayList<RedisEntityStore<?>>();
+
+    private final String keyPrefix;
+    private final byte[] legacyListKey;
+    private final String allIdsKey;
+
+    /** position in the legacy list of the first entry not yet indexed, accessed by the background task only */
+    private long legacyListOffset = 0;
+    /** true once the whole legacy list has been indexed, writes stop updating it then */
+    private volatile boolean legacyListIndexed = false;
+
+    private final ConfigLRUCache<T> cache;
+    private final String invalidationsChannel;
+
+    private static long getCacheMaxAgeMillis() {
+        BpServerConfig config = null;
+        try {
+            config = ServerDAOs.getConfigDAO().get(BackplaneSystemProps.BPSERVER_CONFIG_KEY);
+        } catch (Exception e) {
+            logger.warn("error reading server config, using default config cache max age: " + e.getMessage());
+        }
+        if (config == null) {
+            config = new BpServerConfig();
+        }
+        return config.getMaxCacheAge() * 1000;
+    }
+
+    /**
+     * Invalidates the cached object on this node right away, and on the others through pub/sub.
+     */
+    private void changed(Jedis jedis, String id) {
+        if (cache == null) return;
+        cache.invalidate(id);
+        jedis.publish(invalidationsChannel, id);
+    }
+
+    /**
+     * Writes, or deletes if obj is null, the object and updates its index entries
+     * (and its legacy list copy, until the legacy list has been indexed).
+     * The object key is watched while its previous version is read, and the write is retried if the key changed
+     * meanwhile, so that concurrent writes can't leave stale index entries behind.
+     *
+     * @return the previous version of the object, or null if it didn't exist
+     */
+    private T write(String id, T obj) {
+        byte[] key = getKey(id);
+        byte[] bytes = obj == null ? null : BpSerialUtils.serialize(obj);
+        Set<String> indexKeys = obj == null ? new HashSet<String>() : getIndexKeys(obj);
+        boolean keepLegacyList = legacyListKey != null && ! REMOVE_LEGACY_LISTS && ! legacyListIndexed;
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getWriteJedis();
+            while (true) {
+                jedis.watch(key);
+                byte[] oldBytes = jedis.get(key);
+                T oldObj = null;
+                Set<String> staleIndexKeys = new HashSet<String>();
+                if (oldBytes != null) {
+                    try {
+                        oldObj = deserialize(oldBytes);
+                    } catch (RuntimeException e) {
+                        jedis.unwatch();
+                        throw e;
+                    }
+                    staleIndexKeys.addAll(getIndexKeys(oldObj));
+                }
+                staleIndexKeys.removeAll(indexKeys);
+
+                Transaction t = jedis.multi();
+                if (bytes != null) {
+                    t.set(key, bytes);
+                    t.sadd(allIdsKey, id);
+                } else {
+                    t.del(key);
+                    t.srem(allIdsKey, id);
+                }
+                for (String indexKey : indexKeys) {
+                    t.sadd(indexKey, id);
+                }
+                for (String indexKey : staleIndexKeys) {
+                    t.srem(indexKey, id);
+                }
+                if (keepLegacyList) {
+                    if (oldBytes != null) {
+                        t.lrem(legacyListKey, 0, oldBytes);
+                    }
+                    if (bytes != null) {
+                        t.rpush(legacyListKey, bytes);
+                    }
+                }
+                if (t.exec() != null) {
+                    changed(jedis, id);
+                    return oldObj;
+                }
+                logger.debug("concurrent update of " + keyPrefix + id + ", retrying");
+            }
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
+    }
+
+    private List<T> getByIdsSet(String idsKey, boolean fromPrimary) {
+        List<T> result = new ArrayList<T>();
+        List<String> ids = new ArrayList<String>();
+        Jedis jedis = null;
+        try {
+            jedis = fromPrimary ? Redis.getInstance().getWriteJedis() : Redis.getInstance().getReadJedis();
+            ids.addAll(jedis.smembers(idsKey));
+            for (int start = 0; start < ids.size(); start += CHUNK_SIZE) {
+                List<String> chunk = ids.subList(start, Math.min(ids.size(), start + CHUNK_SIZE));
+                byte[][] keys = new byte[chunk.size()][];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = getKey(chunk.get(i));
+                }
+                for (byte[] bytes : jedis.mget(keys)) {
+                    // null if deleted since the IDs were read
+                    if (bytes != null) {
+                        result.add(deserialize(bytes));
+                    }
+                }
+            }
+            return result;
+        } catch (JedisConnectionException jce) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw jce;
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
+    }
+
+    /**
+     * Indexes the objects in the legacy list from legacyListOffset on, i.e. those appended since the previous call.
+     * If the list got shorter, entries were removed (by nodes running the previous version) and the positions
+     * changed, so it is indexed again from the start; indexing is idempotent.
+     * The list holds copies that may be stale, so the objects are indexed as currently stored, if they still exist.
+     * If the BP_LEGACY_LISTS_REMOVE system property is set, the indexed entries are trimmed off the list.
+     */
+    private void indexLegacyList() {
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getWriteJedis();
+            long length = jedis.llen(legacyListKey);
+            if (length < legacyListOffset) {
+                legacyListOffset = 0;
+            }
+            long start = legacyListOffset;
+            int indexed = 0;
+            while (start < length) {
+                List<byte[]> chunk = jedis.lrange(legacyListKey, start, Math.min(length, start + CHUNK_SIZE) - 1);
+                if (chunk.isEmpty()) break; // trimmed meanwhile
+                indexed += indexLegacyChunk(jedis, chunk);
+                start += chunk.size();
+            }
+            if (start > legacyListOffset) {
+                logger.info("indexed " + indexed + " objects from " + (start - legacyListOffset) + " entries of legacy list " + new String(legacyListKey));
+            }
+            if (REMOVE_LEGACY_LISTS && start > 0) {
+                jedis.ltrim(legacyListKey, start, -1);
+                logger.info("removed " + start + " indexed entries from legacy list " + new String(legacyListKey));
+                start = 0;
+            }
+            legacyListOffset = start;
+            if (! legacyListIndexed) {
+                legacyListIndexed = true;
+                logger.info("legacy list " + new String(legacyListKey) + " indexed, no longer updated on writes");
+            }
+        } catch (JedisConnectionException jce) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw jce;
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
+    }
+
+    /**
+     * @return the number of objects from the legacy list chunk that still exist, and were (re)indexed
+     */
+    private int indexLegacyChunk(Jedis jedis, List<byte[]> chunk) {
+        Set<String> uniqueIds = new LinkedHashSet<String>();
+        for (byte[] bytes : chunk) {
+            try {
+                uniqueIds.add(deserialize(bytes).getIdValue());
+            } catch (Exception e) {
+                logger.warn("skipping invalid entry in " + new String(legacyListKey) + ": " + e.getMessage());
+            }
+        }
+        if (uniqueIds.isEmpty()) return 0;
+        List<String> ids = new ArrayList<String>(uniqueIds);
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = getKey(ids.get(i));
+        }
+        List<byte[]> current = jedis.mget(keys);
+        int indexed = 0;
+        Pipeline p = jedis.pipelined();
+        for (int i = 0; i < ids.size(); i++) {
+            if (current.get(i) == null) continue;
+            p.sadd(allIdsKey, ids.get(i));
+            for (String indexKey : getIndexKeys(deserialize(current.get(i)))) {
+                p.sadd(indexKey, ids.get(i));
+            }
+            indexed++;
+        }
+        p.sync();
+        return indexed;
+    }
+}
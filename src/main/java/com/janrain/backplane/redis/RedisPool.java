@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.util.Pool;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Jedis connection pool whose connections know the pool they belong to, so they can be returned
+ * without any bookkeeping of checked out connections.
+ *
+ * Outstanding leases are counted with a striped counter. Optionally, one in leakSampleRate leases
+ * records where it was taken from, and is reported by checkLeaks() if not returned in time.
+ *
+ * The pool also tracks the health of its server: an exponentially weighted moving average of the lease durations,
+ * and consecutive errors (broken connections, failures to connect). After MAX_CONSECUTIVE_ERRORS the server
+ * is ejected for an increasing period, after which a single probe lease may re-admit it.
+ */
+public class RedisPool extends Pool<Jedis> {
+
+    // - PUBLIC
+
+    /**
+     * @param leakSampleRate one in leakSampleRate leases is tracked for leak detection; 0 disables leak detection
+     */
+    public RedisPool(GenericObjectPool.Config poolConfig, String host, int port, int leakSampleRate) {
+        this(poolConfig, new Factory(host, port), leakSampleRate);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return average lease duration in nanoseconds, weighted towards recent leases
+     */
+    public long getLatencyEwmaNanos() {
+        return (long) Double.longBitsToDouble(latencyEwma.get());
+    }
+
+    /**
+     * @return the expected wait for a new lease, for picking the least loaded server; lower is better
+     */
+    public double getLoadScore() {
+        return Double.longBitsToDouble(latencyEwma.get()) * (getOutstanding() + 1);
+    }
+
+    public boolean isHealthy() {
+        return ejectedUntil == 0;
+    }
+
+    /**
+     * @return true if the server was ejected, its ejection period passed and no other probe is in progress;
+     *         the caller must then lease a connection, whose release decides whether the server is re-admitted
+     */
+    public boolean tryProbe() {
+        long until = ejectedUntil;
+        return until != 0 && System.currentTimeMillis() >= until && probing.compareAndSet(false, true);
+    }
+
+    public void recordError() {
+        int errors = consecutiveErrors.incrementAndGet();
+        if (errors >= MAX_CONSECUTIVE_ERRORS) {
+            boolean wasHealthy = ejectedUntil == 0;
+            ejectionMillis = wasHealthy ? MIN_EJECTION_MILLIS : Math.min(MAX_EJECTION_MILLIS, ejectionMillis * 2);
+            ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+            probing.set(false);
+            if (wasHealthy) {
+                logger.warn("redis server " + name + " ejected after " + errors + " consecutive errors");
+            }
+        }
+    }
+
+    public void recordSuccess(long latencyNanos) {
+        consecutiveErrors.set(0);
+        while (true) {
+            long current = latencyEwma.get();
+            double ewma = Double.longBitsToDouble(current);
+            double updated = ewma == 0 ? latencyNanos : ewma + EWMA_WEIGHT * (latencyNanos - ewma);
+            if (latencyEwma.compareAndSet(current, Double.doubleToLongBits(updated))) break;
+        }
+        if (ejectedUntil != 0) {
+            ejectedUntil = 0;
+            probing.set(false);
+            logger.info("redis server " + name + " re-admitted");
+        }
+    }
+
+    /**
+     * Be sure to release the returned connection with Redis.releaseToPool(), or with Redis.releaseBrokenResourceToPool()
+     * after a JedisConnectionException (including timeouts), so that it counts as an error of the server.
+     * A failure to lease a connection counts as an error as well.
+     */
+    public Jedis lease() {
+        LeasedJedis jedis;
+        try {
+            jedis = (LeasedJedis) getResource();
+        } catch (RuntimeException e) {
+            recordError();
+            throw e;
+        }
+        jedis.leased.set(true);
+        jedis.leasedAtNanos = System.nanoTime();
+        outstanding.increment();
+        if (leakSampleRate > 0 && leakSampleRandom.get().nextInt(leakSampleRate) == 0) {
+            jedis.leaseTrace = new Throwable("redis connection leased from " + name + " by " + Thread.currentThread().getName());
+            jedis.leasedAt = System.currentTimeMillis();
+            sampledLeases.put(jedis, jedis);
+        }
+        return jedis;
+    }
+
+    /**
+     * @return true if the connection was leased from a RedisPool and released now, false otherwise
+     */
+    public static boolean release(Jedis jedis, boolean isBroken) {
+        if (! (jedis instanceof LeasedJedis)) return false;
+        LeasedJedis leasedJedis = (LeasedJedis) jedis;
+        if (! leasedJedis.leased.compareAndSet(true, false)) return false;
+        RedisPool pool = leasedJedis.pool;
+        if (leasedJedis.leaseTrace != null) {
+            pool.sampledLeases.remove(leasedJedis);
+            leasedJedis.leaseTrace = null;
+        }
+        pool.outstanding.decrement();
+        if (isBroken) {
+            pool.recordError();
+            pool.returnBrokenResource(jedis);
+        } else {
+            pool.recordSuccess(System.nanoTime() - leasedJedis.leasedAtNanos);
+            pool.returnResource(jedis);
+        }
+        return true;
+    }
+
+    /**
+     * Logs the sampled leases that are outstanding for more than maxLeaseMillis.
+     */
+    public void checkLeaks(long maxLeaseMillis) {
+        long now = System.currentTimeMillis();
+        for (LeasedJedis jedis : sampledLeases.keySet()) {
+            Throwable leaseTrace = jedis.leaseTrace;
+            if (leaseTrace != null && now - jedis.leasedAt > maxLeaseMillis) {
+                logger.warn("possible redis connection leak, leased " + (now - jedis.leasedAt) + " ms ago", leaseTrace);
+            }
+        }
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(RedisPool.class);
+
+    private static final double EWMA_WEIGHT = 0.1;
+    private static final int MAX_CONSECUTIVE_ERRORS = 3;
+    private static final long MIN_EJECTION_MILLIS = 5000l;
+    private static final long MAX_EJECTION_MILLIS = 60000l;
+
+    private final String name;
+    private final int leakSampleRate;
+    private final StripedCounter outstanding = new StripedCounter();
+    private final Map<LeasedJedis, LeasedJedis> sampledLeases = new ConcurrentHashMap<LeasedJedis, LeasedJedis>();
+
+    /** double bits of the lease duration EWMA, in nanoseconds */
+    private final AtomicLong latencyEwma = new AtomicLong(Double.doubleToLongBits(0));
+    private final AtomicInteger consecutiveErrors = new AtomicInteger(0);
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+    /** 0 if healthy */
+    private volatile long ejectedUntil = 0;
+    private volatile long ejectionMillis = 0;
+
+    private static final ThreadLocal<Random> leakSampleRandom = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private RedisPool(GenericObjectPool.Config poolConfig, Factory factory, int leakSampleRate) {
+        super(poolConfig, factory);
+        this.name = factory.host + ":" + factory.port;
+        this.leakSampleRate = leakSampleRate;
+        factory.pool = this;
+    }
+
+    private static class LeasedJedis extends Jedis {
+
+        private final RedisPool pool;
+        private final AtomicBoolean leased = new AtomicBoolean(false);
+        private volatile Throwable leaseTrace;
+        private volatile long leasedAt;
+        private volatile long leasedAtNanos;
+
+        private LeasedJedis(RedisPool pool, String host, int port) {
+            super(host, port, Protocol.DEFAULT_TIMEOUT);
+            this.pool = pool;
+        }
+    }
+
+    /** same connection lifecycle as JedisPool's factory */
+    private static class Factory extends BasePoolableObjectFactory {
+
+        private final String host;
+        private final int port;
+        private volatile RedisPool pool;
+
+        private Factory(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public Object makeObject() throws Exception {
+            LeasedJedis jedis = new LeasedJedis(pool, host, port);
+            jedis.connect();
+            return jedis;
+        }
+
+        @Override
+        public void destroyObject(Object obj) throws Exception {
+            Jedis jedis = (Jedis) obj;
+            if (jedis.isConnected()) {
+                try {
+                    jedis.quit();
+                } catch (Exception e) {
+                    // ignore
+                }
+                try {
+                    jedis.disconnect();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+
+        @Override
+        public boolean validateObject(Object obj) {
+            try {
+                Jedis jedis = (Jedis) obj;
+                return jedis.isConnected() && "PONG".equals(jedis.ping());
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Lua script run with EVALSHA, falling back to EVAL (which also caches the script on the server)
+ * when the server doesn't know the script yet, e.g. after a restart or a master switch.
+ *
+ * Requires Redis 2.6 or later.
+ */
+public class RedisScript {
+
+    // - PUBLIC
+
+    public RedisScript(String script) {
+        this.script = script.getBytes(UTF8);
+        this.sha1 = sha1Hex(this.script).getBytes(UTF8);
+    }
+
+    public Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || ! e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            logger.info("script " + new String(sha1, UTF8) + " not cached on the redis server, sending it");
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(RedisScript.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] script;
+    private final byte[] sha1;
+
+    private static String sha1Hex(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Single, long-lived Redis pub/sub subscription per node,
+ * dispatching published messages in-process to the listeners registered for each channel.
+ */
+public class RedisSubscriber {
+
+    // - PUBLIC
+
+    public static RedisSubscriber getInstance() {
+        return instance;
+    }
+
+    public static interface Listener {
+        /** Called from the subscriber thread, must not block. */
+        void onMessage(String channel, String message);
+    }
+
+    /**
+     * Registers a listener for the given pub/sub channel; can be called before or after the subscriber is started.
+     */
+    public void addListener(String channel, Listener listener) {
+        List<Listener> channelListeners = listeners.get(channel);
+        if (channelListeners == null) {
+            synchronized (listeners) {
+                channelListeners = listeners.get(channel);
+                if (channelListeners == null) {
+                    channelListeners = new CopyOnWriteArrayList<Listener>();
+                    listeners.put(channel, channelListeners);
+                }
+            }
+        }
+        channelListeners.add(listener);
+        subscribeMissing();
+    }
+
+    /**
+     * Subscribes and dispatches messages until stop() is called, reconnecting if the connection is lost.
+     */
+    public void run() {
+        logger.info("redis subscriber started");
+        while (! stopped) {
+            Jedis jedis = null;
+            try {
+                jedis = Redis.getInstance().createSubscriberJedis();
+                subscribedChannels.clear();
+                pubSub = new Dispatcher();
+                // at least one channel is needed to enter the subscribe loop
+                Set<String> channels = new HashSet<String>(listeners.keySet());
+                channels.add(MessageAlert.CHANNEL);
+                jedis.subscribe(pubSub, channels.toArray(new String[channels.size()]));
+            } catch (Exception e) {
+                if (! stopped) {
+                    logger.warn("redis subscriber connection lost: " + e.getMessage());
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            } finally {
+                pubSub = null;
+                if (jedis != null) {
+                    try {
+                        jedis.disconnect();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+        logger.info("redis subscriber stopped");
+    }
+
+    public void stop() {
+        stopped = true;
+        JedisPubSub current = pubSub;
+        if (current != null && current.isSubscribed()) {
+            try {
+                current.unsubscribe();
+            } catch (Exception e) {
+                logger.warn("error unsubscribing: " + e.getMessage());
+            }
+        }
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(RedisSubscriber.class);
+
+    private static final long RECONNECT_DELAY_MILLIS = 2000l;
+
+    private static final RedisSubscriber instance = new RedisSubscriber();
+
+    private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<String, List<Listener>>();
+    private final Set<String> subscribedChannels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile JedisPubSub pubSub;
+    private volatile boolean stopped = false;
+
+    private RedisSubscriber() {}
+
+    /**
+     * Subscribes to channels that got listeners after the subscription was (re)established.
+     */
+    private void subscribeMissing() {
+        JedisPubSub current = pubSub;
+        if (current == null || ! current.isSubscribed()) return;
+        List<String> missing = new ArrayList<String>();
+        for (String channel : listeners.keySet()) {
+            if (! subscribedChannels.contains(channel)) {
+                missing.add(channel);
+            }
+        }
+        if (! missing.isEmpty()) {
+            try {
+                current.subscribe(missing.toArray(new String[missing.size()]));
+            } catch (Exception e) {
+                logger.warn("error subscribing to " + missing + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private class Dispatcher extends JedisPubSub {
+
+        @Override
+        public void onMessage(String channel, String message) {
+            List<Listener> channelListeners = listeners.get(channel);
+            if (channelListeners == null) return;
+            for (Listener listener : channelListeners) {
+                try {
+                    listener.onMessage(channel, message);
+                } catch (Exception e) {
+                    logger.warn("error dispatching message on " + channel + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannelCount) {
+            logger.info("subscribed to " + channel);
+            subscribedChannels.add(channel);
+            subscribeMissing();
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannelCount) {
+            subscribedChannels.remove(channel);
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) { }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) { }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) { }
+    }
+}
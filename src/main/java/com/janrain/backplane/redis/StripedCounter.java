@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated often from many threads and read rarely: updates go to a per-thread stripe,
+ * so concurrent updates rarely contend on the same cache line; reads sum all stripes.
+ */
+class StripedCounter {
+
+    // - PACKAGE
+
+    void increment() {
+        stripes.incrementAndGet(getStripeIndex());
+    }
+
+    void decrement() {
+        stripes.decrementAndGet(getStripeIndex());
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += stripes.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    // - PRIVATE
+
+    private static final int STRIPES = 16; // power of two
+    /** 8 longs apart, so each stripe gets its own 64 byte cache line */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray stripes = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int getStripeIndex() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+}
@@ -20,6 +20,7 @@ import com.janrain.backplane.cache.CachedL1;
 import com.janrain.backplane.common.AuthException;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.HmacHashUtils;
+import com.janrain.backplane.common.JsonUtils;
 import com.janrain.backplane.config.Admin;
 import com.janrain.backplane.config.BackplaneConfig;
 import com.janrain.backplane.config.BackplaneSystemProps;
@@ -35,7 +36,6 @@ import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.TimerContext;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -429,9 +429,8 @@ public class Backplane1Controller {
                 frames.add(message.asFrame(version));
             }
 
-            ObjectMapper mapper = new ObjectMapper();
             try {
-                String payload = mapper.writeValueAsString(frames);
+                String payload = JsonUtils.getMapper().writeValueAsString(frames);
                 payLoadSizesOnGets.update(payload.length());
                 return payload;
             } catch (IOException e) {
@@ -19,13 +19,13 @@ package com.janrain.backplane.server1;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.DateTimeUtils;
 import com.janrain.backplane.common.ExternalizableCore;
+import com.janrain.backplane.common.JsonUtils;
 import com.janrain.backplane.common.RandomUtils;
 import com.janrain.commons.message.MessageException;
 import com.janrain.commons.message.MessageField;
 import com.janrain.commons.util.Pair;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -117,15 +117,8 @@ public class BackplaneMessage extends ExternalizableCore {
         if ("v1.3".equalsIgnoreCase(version)) {
             msg.put(Field.EXPIRE.getFieldName(), get(Field.EXPIRE));
         }
-        try {
-            msg.put(
-                BackplaneMessage.Field.PAYLOAD.getFieldName(),
-                (new ObjectMapper()).readValue(get(BackplaneMessage.Field.PAYLOAD), Object.class) ); // un-quote the value
-        } catch (IOException e) {
-            String errMsg = "Error deserializing message payload: " + e.getMessage();
-            logger.error(errMsg);
-            throw new BackplaneServerException(errMsg, e);
-        }
+        // stored as JSON, spliced as-is into the response
+        msg.put(BackplaneMessage.Field.PAYLOAD.getFieldName(), new JsonUtils.RawJson(get(BackplaneMessage.Field.PAYLOAD)));
         frame.put("message", msg);
 
         return frame;
@@ -226,7 +219,7 @@ public class BackplaneMessage extends ExternalizableCore {
     private String extractFieldValueAsJsonString(Field field, Map<String,Object> data) throws BackplaneServerException {
         try {
             Object value = data.get(field.getFieldName());
-            return value == null ? null : (new ObjectMapper()).writeValueAsString(value);
+            return value == null ? null : JsonUtils.getMapper().writeValueAsString(value);
         } catch (IOException e) {
             String errMsg = "Error serializing message payload: " + e.getMessage();
             logger.error(errMsg);
@@ -20,6 +20,7 @@ import com.janrain.backplane.common.BpSerialUtils;
 import com.janrain.backplane.common.DateTimeUtils;
 import com.janrain.backplane.config.BackplaneConfig;
 import com.janrain.backplane.config.BackplaneSystemProps;
+import com.janrain.backplane.redis.MessageAlert;
 import com.janrain.backplane.redis.Redis;
 import com.janrain.backplane.server1.dao.BP1DAOs;
 import com.janrain.backplane.server1.dao.redis.RedisBackplaneMessageDAO;
@@ -52,12 +53,12 @@ public class MessageProcessor implements LeaderSelectorListener {
     public void scheduleCleanupMessage() {
         logger.info("creating v1 message cleanup thread");
         ScheduledExecutorService messageWorkerTask = Executors.newScheduledThreadPool(1);
-        messageWorkerTask.scheduleAtFixedRate(new Runnable() {
+        messageWorkerTask.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 cleanupMessages();
             }
-        }, 2, 2, TimeUnit.HOURS);
+        }, CLEANUP_INTERVAL_SECONDS, CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS);
 
         // register worker
         BackplaneConfig.addToBackgroundServices("v1 cleanup", messageWorkerTask);
@@ -140,11 +141,8 @@ public class MessageProcessor implements LeaderSelectorListener {
                                     // save the individual message by key
                                     transaction.set(RedisBackplaneMessageDAO.getKey(newId), BpSerialUtils.serialize(backplaneMessage));
                                     // set the message TTL
-                                    if (backplaneMessage.isSticky()) {
-                                        transaction.expire(RedisBackplaneMessageDAO.getKey(newId), retentionTimeStickySeconds);
-                                    } else {
-                                        transaction.expire(RedisBackplaneMessageDAO.getKey(newId), retentionTimeSeconds);
-                                    }
+                                    int ttlSeconds = backplaneMessage.isSticky() ? retentionTimeStickySeconds : retentionTimeSeconds;
+                                    transaction.expire(RedisBackplaneMessageDAO.getKey(newId), ttlSeconds);
 
                                     // add message id to channel list
                                     transaction.rpush(RedisBackplaneMessageDAO.getChannelKey(backplaneMessage.getChannel()), newId.getBytes());
@@ -152,12 +150,14 @@ public class MessageProcessor implements LeaderSelectorListener {
                                     // add message id to sorted set of all message ids as an index
                                     String metaData = backplaneMessage.getBus() + " " + backplaneMessage.getChannel() + " " + newId;
                                     transaction.zadd(RedisBackplaneMessageDAO.V1_MESSAGES.getBytes(), messageTime, metaData.getBytes());
+                                    // and to the expiry index, for cleanup
+                                    transaction.zadd(RedisBackplaneMessageDAO.V1_MESSAGES_EXPIRY.getBytes(), System.currentTimeMillis() + ttlSeconds * 1000l, metaData.getBytes());
 
                                     // add message id to sorted set keyed by bus as an index
                                     transaction.zadd(RedisBackplaneMessageDAO.getBusKey(backplaneMessage.getBus()), messageTime, newId.getBytes());
 
                                     // make sure all subscribers get the update
-                                    transaction.publish("alerts", newId);
+                                    transaction.publish(MessageAlert.CHANNEL, MessageAlert.encode("v1", backplaneMessage.getBus(), backplaneMessage.getChannel(), newId));
 
                                     // pop one message off the queue - which will only happen if this transaction is successful
                                     transaction.lpop(RedisBackplaneMessageDAO.V1_MESSAGE_QUEUE);
@@ -258,6 +258,8 @@ public class MessageProcessor implements LeaderSelectorListener {
 
     private static final String V1_LAST_ID = "v1_last_id";
 
+    private static final long CLEANUP_INTERVAL_SECONDS = 10;
+
     @Override
     public void takeLeadership(CuratorFramework curatorFramework) throws Exception {
         logger.info("[" + BackplaneSystemProps.getMachineName() + "] v1 leader elected for message processing");
@@ -20,5 +20,8 @@ public interface BP1MessageDao extends DAO<BackplaneMessage> {
 
     public int getMessageCount(String bus, String channel);
 
+    /**
+     * Removes (a bounded number of) expired messages from the message indexes; meant to be called often.
+     */
     public void deleteExpiredMessages();
 }
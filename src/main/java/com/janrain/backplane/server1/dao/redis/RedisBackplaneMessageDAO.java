@@ -18,9 +18,13 @@ package com.janrain.backplane.server1.dao.redis;
 
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.BpSerialUtils;
+import com.janrain.backplane.common.DateTimeUtils;
+import com.janrain.backplane.redis.MessageCacheLoader;
+import com.janrain.backplane.redis.MessageIndexReaper;
 import com.janrain.backplane.redis.Redis;
 import com.janrain.backplane.server1.BackplaneMessage;
 import com.janrain.backplane.server1.dao.BP1MessageDao;
+import com.janrain.backplane.server2.dao.MessageCache;
 import com.janrain.commons.message.MessageException;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Histogram;
@@ -43,6 +47,8 @@ public class RedisBackplaneMessageDAO implements BP1MessageDao {
 
     final public static String V1_MESSAGE_QUEUE = "v1_message_queue";
     final public static String V1_MESSAGES = "v1_messages";
+    /** same entries as V1_MESSAGES, scored by message expiration time */
+    final public static String V1_MESSAGES_EXPIRY = "v1_messages_expiry";
 
     public static byte[] getBusKey(String bus) {
         return ("v1_bus_idx_" + bus).getBytes();
@@ -56,6 +62,31 @@ public class RedisBackplaneMessageDAO implements BP1MessageDao {
         return ("v1_message_" + key).getBytes();
     }
 
+    public RedisBackplaneMessageDAO() {
+        cacheLoader = new MessageCacheLoader<BackplaneMessage>("v1", V1_MESSAGES,
+                new MessageCache<BackplaneMessage>(MESSAGE_CACHE_MAX_BYTES), MESSAGE_CACHE_WINDOW_MILLIS) {
+            @Override
+            protected byte[] getMessageKey(String messageId) {
+                return getKey(messageId);
+            }
+        };
+        cacheLoader.start();
+
+        indexReaper = new MessageIndexReaper("v1", V1_MESSAGES, V1_MESSAGES_EXPIRY) {
+            @Override
+            protected void removeMessage(Pipeline pipeline, String bus, String channel, String messageId) {
+                pipeline.lrem(getChannelKey(channel), 0, messageId.getBytes());
+                pipeline.zrem(getBusKey(bus), messageId.getBytes());
+                pipeline.del(getKey(messageId));
+            }
+
+            @Override
+            protected byte[] getMessageKey(String messageId) {
+                return getKey(messageId);
+            }
+        };
+    }
+
     /**
      * Add message to work queue - any node may add since it is an atomic operation
      * However, the message ID will be determined later by the message processor
@@ -110,44 +141,7 @@ public class RedisBackplaneMessageDAO implements BP1MessageDao {
 
     @Override
     public void deleteExpiredMessages() {
-
-        Jedis jedis = null;
-
-        try {
-
-            logger.info("preparing to cleanup v1 messages");
-
-            jedis = Redis.getInstance().getWriteJedis();
-
-            Set<byte[]> messageMetaBytes = jedis.zrangeByScore(RedisBackplaneMessageDAO.V1_MESSAGES.getBytes(), 0, Double.MAX_VALUE);
-
-            if (messageMetaBytes != null) {
-                logger.info("scanning " + messageMetaBytes.size() + " v1 messages");
-                int messageCounter = 0;
-                for (byte[] b : messageMetaBytes) {
-                    if (messageCounter++ % 100 == 0) {
-                        logger.info("still scanning v1 messages...");
-                    }
-                    String metaData = new String(b);
-                    String[] segs = metaData.split(" ");
-                    String key = segs[2];
-                    // if the message body is not found, it expired and should be removed from indexes
-                    if (!jedis.exists(getKey(key))) {
-                        delete(key);
-                    }
-                }
-            }
-        } catch (JedisConnectionException jce) {
-            logger.warn("exited message cleanup: "+ jce.getMessage());
-            Redis.getInstance().releaseBrokenResourceToPool(jedis);
-            jedis=null;
-        } catch (Exception e) {
-            logger.warn(e);
-        } finally {
-            logger.info("exiting v1 message cleanup");
-            Redis.getInstance().releaseToPool(jedis);
-        }
-
+        indexReaper.run();
     }
 
     @Override
@@ -177,6 +171,18 @@ public class RedisBackplaneMessageDAO implements BP1MessageDao {
 
     public List<BackplaneMessage> getMessagesByChannel(String bus, String channel, String since, String sticky) throws MessageException, BackplaneServerException {
 
+        List<BackplaneMessage> cached = cacheLoader.getCache().getMessagesSinceIfCached(since, MESSAGE_CACHE_MAX_STALE_MILLIS);
+        if (cached != null) {
+            List<BackplaneMessage> messages = new ArrayList<BackplaneMessage>();
+            for (BackplaneMessage message : cached) {
+                if (channel.equals(message.getChannel()) && ! isExpired(message)) {
+                    messages.add(message);
+                }
+            }
+            filterAndSort(messages, since, sticky);
+            return messages;
+        }
+
         Jedis jedis = null;
 
         try {
@@ -270,6 +276,10 @@ public class RedisBackplaneMessageDAO implements BP1MessageDao {
             filterAndSort(messages, since, sticky);
             return messages;
 
+        } catch (JedisConnectionException jce) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw jce;
         } finally {
             Redis.getInstance().releaseToPool(jedis);
         }
@@ -281,6 +291,13 @@ public class RedisBackplaneMessageDAO implements BP1MessageDao {
 
     private static final Logger logger = Logger.getLogger(RedisBackplaneMessageDAO.class);
 
+    private static final long MESSAGE_CACHE_MAX_BYTES = 50 * 1024 * 1024;
+    private static final long MESSAGE_CACHE_WINDOW_MILLIS = 5 * 60 * 1000;
+    private static final long MESSAGE_CACHE_MAX_STALE_MILLIS = 3000;
+
+    private final MessageCacheLoader<BackplaneMessage> cacheLoader;
+    private final MessageIndexReaper indexReaper;
+
     private final Histogram messagesPerChannel = Metrics.newHistogram(new MetricName("v1", this.getClass().getName().replace(".","_"), "v1_messages_per_channel"));
 
     private void filterAndSort(List<BackplaneMessage> messages, String since, String sticky) {
@@ -315,6 +332,11 @@ public class RedisBackplaneMessageDAO implements BP1MessageDao {
         });
     }
 
+    private static boolean isExpired(BackplaneMessage message) {
+        Date expireTime = DateTimeUtils.getExpireTime(message.getIdValue(), message.get(BackplaneMessage.Field.EXPIRE), message.isSticky());
+        return expireTime != null && expireTime.getTime() < System.currentTimeMillis();
+    }
+
     private String genBusKey(String key) {
         return "v1bus" + key;
     }
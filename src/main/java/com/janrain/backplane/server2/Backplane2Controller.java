@@ -32,6 +32,7 @@ import com.yammer.metrics.core.TimerContext;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.continuation.Continuation;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.HttpRequestMethodNotSupportedException;
 import org.springframework.web.bind.annotation.*;
@@ -288,19 +289,39 @@ public class Backplane2Controller {
             }
 
             MessagesResponse bpResponse = new MessagesResponse(messageRequest.getSince());
-            boolean exit = false;
-            do {
-                BP2DAOs.getBackplaneMessageDAO().retrieveMessagesPerScope(bpResponse, token);
-                if (!bpResponse.hasMessages() && new Date().before(messageRequest.getReturnBefore())) {
-                    try {
-                        Thread.sleep(MESSAGES_POLL_SLEEP_MILLIS);
-                    } catch (InterruptedException e) {
-                        //ignore
+
+            Continuation continuation = ServletUtil.getContinuation(request);
+            MessageWaiters.ContinuationWaiter suspendedWaiter = (MessageWaiters.ContinuationWaiter) request.getAttribute(MESSAGES_WAITER_ATTRIBUTE);
+            if (continuation != null && (suspendedWaiter != null || new Date().before(messageRequest.getReturnBefore()))) {
+                return retrieveMessagesAsync(request, token, bpResponse, continuation, suspendedWaiter, messageRequest);
+            }
+
+            MessageWaiters.BlockingWaiter waiter = null;
+            try {
+                if (new Date().before(messageRequest.getReturnBefore())) {
+                    // register before the first check, so that messages arriving in between aren't missed
+                    waiter = new MessageWaiters.BlockingWaiter();
+                    MessageWaiters.getInstance().register(waiter, token.getScope());
+                }
+                boolean exit = false;
+                do {
+                    BP2DAOs.getBackplaneMessageDAO().retrieveMessagesPerScope(bpResponse, token);
+                    long remainingMillis = messageRequest.getReturnBefore().getTime() - System.currentTimeMillis();
+                    if (!bpResponse.hasMessages() && waiter != null && remainingMillis > 0) {
+                        try {
+                            waiter.await(Math.min(remainingMillis, MESSAGES_POLL_RECHECK_MILLIS));
+                        } catch (InterruptedException e) {
+                            //ignore
+                        }
+                    } else {
+                        exit = true;
                     }
-                } else {
-                    exit = true;
+                } while (!exit);
+            } finally {
+                if (waiter != null) {
+                    MessageWaiters.getInstance().unregister(waiter);
                 }
-            } while (!exit);
+            }
 
             return bpResponse.asResponseFields(request.getServerName(), token.getType().isPrivileged());
 
@@ -316,6 +337,11 @@ public class Backplane2Controller {
             if (context != null) {
                 context.stop();
             }
+            MessageWaiters.Waiter asyncWaiter = (MessageWaiters.Waiter) request.getAttribute(MESSAGES_WAITER_ATTRIBUTE);
+            if (asyncWaiter != null && ! ServletUtil.isSuspended(request)) {
+                MessageWaiters.getInstance().unregister(asyncWaiter);
+                request.removeAttribute(MESSAGES_WAITER_ATTRIBUTE);
+            }
         }
     }
 
@@ -527,13 +553,48 @@ public class Backplane2Controller {
 
     public static final String AUTHZ_DECISION_KEY = "auth_key";
 
-    private static final int MESSAGES_POLL_SLEEP_MILLIS = 3000;
+    /** blocked requests are woken up by message alerts, but still re-check periodically in case an alert was missed */
+    private static final int MESSAGES_POLL_RECHECK_MILLIS = 10000;
+
+    private static final String MESSAGES_WAITER_ATTRIBUTE = "com.janrain.backplane.server2.messagesWaiter";
 
     @Inject
     private BackplaneConfig bpConfig;
 
     //private static final Random random = new SecureRandom();
 
+    /**
+     * Retrieves messages for a blocking request without holding on to the request thread while waiting:
+     * if no messages are available the request is suspended, and dispatched again
+     * when woken up by a message alert, or when the re-check interval or the block time expire.
+     *
+     * @return the response fields, or null if the request was suspended
+     */
+    private Map<String, Object> retrieveMessagesAsync(HttpServletRequest request, Token token, MessagesResponse bpResponse,
+                                                      Continuation continuation, MessageWaiters.ContinuationWaiter waiter,
+                                                      MessageRequest messageRequest) throws BackplaneServerException {
+        if (waiter == null) {
+            // first dispatch: register before the first check, so that messages arriving in between aren't missed
+            // the waiter is unregistered by messages() once the request completes
+            waiter = new MessageWaiters.ContinuationWaiter(continuation, messageRequest.getReturnBefore());
+            request.setAttribute(MESSAGES_WAITER_ATTRIBUTE, waiter);
+            MessageWaiters.getInstance().register(waiter, token.getScope());
+        } else {
+            waiter.resumed();
+        }
+
+        while (true) {
+            BP2DAOs.getBackplaneMessageDAO().retrieveMessagesPerScope(bpResponse, token);
+            long remainingMillis = waiter.getReturnBefore().getTime() - System.currentTimeMillis();
+            if (bpResponse.hasMessages() || remainingMillis <= 0) {
+                return bpResponse.asResponseFields(request.getServerName(), token.getType().isPrivileged());
+            }
+            if (waiter.suspend(Math.min(remainingMillis, MESSAGES_POLL_RECHECK_MILLIS))) {
+                return null;
+            }
+        }
+    }
+
     private void checkBusOwnerAuth(String busOwner, String password) throws AuthException {
         BusOwner busOwnerEntry = null;
         try {
@@ -19,6 +19,7 @@ package com.janrain.backplane.server2;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.DateTimeUtils;
 import com.janrain.backplane.common.ExternalizableCore;
+import com.janrain.backplane.common.JsonUtils;
 import com.janrain.backplane.common.RandomUtils;
 import com.janrain.backplane.servlet.InvalidRequestException;
 import com.janrain.commons.message.MessageException;
@@ -26,7 +27,6 @@ import com.janrain.commons.message.MessageField;
 import com.janrain.commons.util.Pair;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.IOException;
 import java.text.ParseException;
@@ -109,6 +109,34 @@ public class BackplaneMessage extends ExternalizableCore {
         return "true".equalsIgnoreCase(get(Field.STICKY));
     }
 
+    /**
+     * Renders and stores the frame template used by asFrameJson().
+     * Must be called once the message is final, i.e. after its ID was updated by the message processor.
+     */
+    public void renderFrame() throws BackplaneServerException {
+        put(Field.FRAME.getFieldName(), renderFrameTemplate());
+    }
+
+    /**
+     * @param jsonEscapedServerDomain server domain, already escaped for inclusion in a JSON string
+     * @return the message frame as JSON, same as asFrame() would render it
+     */
+    public String asFrameJson(String jsonEscapedServerDomain, boolean includePayload) throws BackplaneServerException {
+        String template = get(Field.FRAME);
+        if (template == null) {
+            // message stored before frames were pre-rendered; messages may be shared, so not stored here
+            template = renderFrameTemplate();
+        }
+        String payload = includePayload ? get(Field.PAYLOAD) : null;
+        StringBuilder frame = new StringBuilder(FRAME_PREFIX.length() + jsonEscapedServerDomain.length() + template.length() +
+                                                (payload == null ? 0 : payload.length() + 12) + 1);
+        frame.append(FRAME_PREFIX).append(jsonEscapedServerDomain).append(template);
+        if (includePayload) {
+            frame.append(",\"").append(Field.PAYLOAD.getFieldName()).append("\":").append(payload == null ? "null" : payload);
+        }
+        return frame.append('}').toString();
+    }
+
     public Map<String, Object> asFrame(String serverDomain, boolean includePayload) throws BackplaneServerException {
 
         HashMap<String, Object> frame = new LinkedHashMap<String, Object>();
@@ -122,14 +150,9 @@ public class BackplaneMessage extends ExternalizableCore {
         frame.put(Field.STICKY.getFieldName(), containsKey(Field.STICKY.getFieldName()) ? get(Field.STICKY) : Boolean.FALSE.toString());
         frame.put(Field.EXPIRE.getFieldName(), get(Field.EXPIRE));
 
-        try {
-            if (includePayload) {
-                frame.put(Field.PAYLOAD.getFieldName(), (new ObjectMapper()).readValue(get(Field.PAYLOAD), Object.class) ); // un-quote the value
-            }
-        } catch (IOException e) {
-            String errMsg = "Error deserializing message payload: " + e.getMessage();
-            logger.error(errMsg);
-            throw new BackplaneServerException(errMsg, e);
+        if (includePayload) {
+            // stored as JSON, spliced as-is into the response
+            frame.put(Field.PAYLOAD.getFieldName(), new JsonUtils.RawJson(get(Field.PAYLOAD)));
         }
 
         return frame;
@@ -182,7 +205,10 @@ public class BackplaneMessage extends ExternalizableCore {
             }
         },
 
-        PAYLOAD("payload", NONE);
+        PAYLOAD("payload", NONE),
+
+        /** pre-rendered frame template, internal */
+        FRAME("frame", false, NONE);
 
         @Override
         public String getFieldName() {
@@ -239,6 +265,9 @@ public class BackplaneMessage extends ExternalizableCore {
 
     private static final Logger logger = Logger.getLogger(BackplaneMessage.class);
 
+    /** rendered frames start with the message URL, followed by the server domain */
+    private static final String FRAME_PREFIX = "{\"" + Field.MESSAGE_URL.getFieldName() + "\":\"https://";
+
     private static final Set<String> UPSTREAM_FIELDS = new HashSet<String>() {{
         add(Field.TYPE.getFieldName());
         add(Field.BUS.getFieldName());
@@ -248,6 +277,24 @@ public class BackplaneMessage extends ExternalizableCore {
         add(Field.EXPIRE.getFieldName());
     }};
 
+    /**
+     * @return the JSON frame without payload, from the server domain on (exclusive) and without the closing brace
+     */
+    private String renderFrameTemplate() throws BackplaneServerException {
+        String frame;
+        try {
+            frame = JsonUtils.getMapper().writeValueAsString(asFrame("", false));
+        } catch (IOException e) {
+            String errMsg = "Error rendering message frame: " + e.getMessage();
+            logger.error(errMsg);
+            throw new BackplaneServerException(errMsg, e);
+        }
+        if (! frame.startsWith(FRAME_PREFIX) || ! frame.endsWith("}")) {
+            throw new BackplaneServerException("Unexpected message frame: " + frame);
+        }
+        return frame.substring(FRAME_PREFIX.length(), frame.length() - 1);
+    }
+
     private void checkUpstreamExtraFields(Map<String, Object> data) {
         for (String field : data.keySet()) {
             if (!UPSTREAM_FIELDS.contains(field)) {
@@ -266,7 +313,7 @@ public class BackplaneMessage extends ExternalizableCore {
     private String extractFieldValueAsJsonString(Field field, Map<String,Object> data) throws BackplaneServerException {
         try {
             Object value = data.get(field.getFieldName());
-            return value == null ? null : (new ObjectMapper()).writeValueAsString(value);
+            return value == null ? null : JsonUtils.getMapper().writeValueAsString(value);
         } catch (IOException e) {
             String errMsg = "Error serializing message payload: " + e.getMessage();
             logger.error(errMsg);
@@ -57,6 +57,20 @@ public class BusConfig2 extends ExternalizableCore {
         return Integer.valueOf(get(Field.RETENTION_STICKY_TIME_SECONDS));
     }
 
+    /**
+     * @return the longest time a message on this bus can be retained
+     */
+    public int getMaxRetentionSeconds() {
+        return Math.max(getRetentionTimeSeconds(), getRetentionTimeStickySeconds());
+    }
+
+    /**
+     * @return the longest time a message on any bus can be retained
+     */
+    public static int getRetentionLimitSeconds() {
+        return Math.max(Field.RETENTION_MAX_VALUE, Field.RETENTION_STICKY_MAX_VALUE);
+    }
+
     @Override
     public Set<? extends MessageField> getFields() {
         return EnumSet.allOf(Field.class);
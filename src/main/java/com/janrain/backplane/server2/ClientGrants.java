@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Precomputed view of the active grants issued to a client: their parsed authorized scopes,
+ * and the grants authorized for each bus. Grant expiration is checked when the view is read.
+ */
+public class ClientGrants {
+
+    // - PUBLIC
+
+    public ClientGrants(@NotNull List<Grant> activeGrants) {
+        for (Grant grant : activeGrants) {
+            Date expires = grant.getExpirationDate();
+            GrantEntry entry = new GrantEntry(grant, grant.getAuthorizedScope(), expires == null ? Long.MAX_VALUE : expires.getTime());
+            entries.add(entry);
+            Set<String> buses = entry.scope.getScopeFieldValues(BackplaneMessage.Field.BUS);
+            if (buses == null) continue;
+            for (String bus : buses) {
+                List<GrantEntry> busEntries = entriesByBus.get(bus);
+                if (busEntries == null) {
+                    busEntries = new ArrayList<GrantEntry>();
+                    entriesByBus.put(bus, busEntries);
+                }
+                busEntries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * @return the client's unexpired grants, with their authorized scopes
+     */
+    public @NotNull Map<Grant,Scope> getGrants() {
+        long now = System.currentTimeMillis();
+        Map<Grant,Scope> grants = new LinkedHashMap<Grant, Scope>();
+        for (GrantEntry entry : entries) {
+            if (entry.expiresAt >= now) {
+                grants.put(entry.grant, entry.scope);
+            }
+        }
+        return grants;
+    }
+
+    /**
+     * @return the client's unexpired grants that authorize the bus
+     */
+    public @NotNull Set<Grant> getGrantsForBus(String bus) {
+        long now = System.currentTimeMillis();
+        Set<Grant> grants = new LinkedHashSet<Grant>();
+        List<GrantEntry> busEntries = entriesByBus.get(bus);
+        if (busEntries != null) {
+            for (GrantEntry entry : busEntries) {
+                if (entry.expiresAt >= now) {
+                    grants.add(entry.grant);
+                }
+            }
+        }
+        return grants;
+    }
+
+    /**
+     * @return the approximate footprint of the view, for caching
+     */
+    public long sizeBytes() {
+        long size = 0;
+        for (GrantEntry entry : entries) {
+            size += entry.grant.sizeBytes();
+        }
+        return size;
+    }
+
+    // - PRIVATE
+
+    private static class GrantEntry {
+
+        private final Grant grant;
+        private final Scope scope;
+        private final long expiresAt;
+
+        private GrantEntry(Grant grant, Scope scope, long expiresAt) {
+            this.grant = grant;
+            this.scope = scope;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final List<GrantEntry> entries = new ArrayList<GrantEntry>();
+    private final Map<String,List<GrantEntry>> entriesByBus = new HashMap<String, List<GrantEntry>>();
+}
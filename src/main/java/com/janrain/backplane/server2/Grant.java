@@ -88,7 +88,7 @@ public class Grant extends ExternalizableCore {
 
     public Scope getAuthorizedScope() {
         try {
-            return new Scope(get(GrantField.AUTHORIZED_SCOPES));
+            return Scope.valueOf(get(GrantField.AUTHORIZED_SCOPES));
         } catch (TokenException e) {
             throw new IllegalStateException("Invalid value on for GrantField.AUTHORIZED_SCOPES, should have been validated on grant creation: " + this.get(GrantField.AUTHORIZED_SCOPES));
         }
@@ -32,17 +32,16 @@ public class GrantLogic {
     public static @NotNull Map<Scope,Set<Grant>>
     retrieveClientGrants(final String clientId, @Nullable Scope scope) throws BackplaneServerException, TokenException {
 
-        List<Grant> clientActiveGrants = BP2DAOs.getGrantDao().getByClientId(clientId);
+        ClientGrants clientGrants = BP2DAOs.getGrantDao().getClientGrants(clientId);
 
         Map<Scope,Set<Grant>> result = new LinkedHashMap<Scope, Set<Grant>>();
 
         if (scope == null || ! scope.isAuthorizationRequired()) {
             Set<Grant> selectedGrants = new LinkedHashSet<Grant>();
             Map<BackplaneMessage.Field,LinkedHashSet<String>> authorizedScopesMap = new LinkedHashMap<BackplaneMessage.Field, LinkedHashSet<String>>();
-            for (Grant grant : clientActiveGrants) {
-                if (grant.isExpired()) continue;
-                selectedGrants.add(grant);
-                Scope.addScopes(authorizedScopesMap, grant.getAuthorizedScope().getScopeMap());
+            for (Map.Entry<Grant,Scope> grantScope : clientGrants.getGrants().entrySet()) {
+                selectedGrants.add(grantScope.getKey());
+                Scope.addScopes(authorizedScopesMap, grantScope.getValue().getScopeMap());
             }
             if (scope != null) {
                 Scope.addScopes(authorizedScopesMap, scope.getScopeMap()); // add request filter-only scopes
@@ -50,24 +49,18 @@ public class GrantLogic {
             result.put(new Scope(authorizedScopesMap), selectedGrants);
         } else {
             for(Scope authReqScope : scope.getAuthReqScopes()) {
-                final Scope testScope;
+                // bus is the only authorization-required scope field, channels are authorized through their bound bus
+                final String bus;
                 if (authReqScope.getScopeMap().containsKey(BackplaneMessage.Field.CHANNEL)) {
                     Channel channel = BP2DAOs.getChannelDao().get(authReqScope.getScopeMap().get(BackplaneMessage.Field.CHANNEL).iterator().next());
-                    String boundBus = channel == null ? null : channel.get(Channel.ChannelField.BUS);
-                    testScope = new Scope(BackplaneMessage.Field.BUS, boundBus);
+                    bus = channel == null ? null : channel.get(Channel.ChannelField.BUS);
                 } else {
-                    testScope = authReqScope;
+                    bus = authReqScope.getScopeMap().get(BackplaneMessage.Field.BUS).iterator().next();
                 }
-                for(Grant grant : clientActiveGrants) {
-                    if (grant.isExpired()) continue;
-                    if (grant.getAuthorizedScope().containsScope(testScope)) {
-                        Set<Grant> backingGrants = result.get(authReqScope);
-                        if (backingGrants == null) {
-                            backingGrants = new LinkedHashSet<Grant>();
-                            result.put(authReqScope, backingGrants);
-                        }
-                        backingGrants.add(grant);
-                    }
+                if (bus == null) continue;
+                Set<Grant> backingGrants = clientGrants.getGrantsForBus(bus);
+                if (! backingGrants.isEmpty()) {
+                    result.put(authReqScope, backingGrants);
                 }
             }
         }
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.continuation.Continuation;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Registry of blocked /v2/messages requests, keyed by the channels (or buses) of their token's scope.
+ *
+ * Waiters are woken when a message for one of the channels / buses they are registered for
+ * becomes available, so that a long-poll request can re-check for messages right away instead of polling on a timer.
+ */
+public class MessageWaiters {
+
+    // - PUBLIC
+
+    public static MessageWaiters getInstance() {
+        return instance;
+    }
+
+    /**
+     * Something waiting for new messages; wakeUp() is called, possibly more than once,
+     * from the thread that learned about the new message(s) and must not block.
+     */
+    public static abstract class Waiter {
+
+        protected abstract void wakeUp();
+
+        // - PRIVATE
+
+        private final List<String> keys = new ArrayList<String>();
+    }
+
+    /**
+     * Waiter for a request thread that parks until it is woken up or its timeout expires.
+     */
+    public static class BlockingWaiter extends Waiter {
+
+        /**
+         * @return true if the waiter was woken up (since the last call), false if the timeout expired
+         */
+        public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            if (! signalled && timeoutMillis > 0) {
+                wait(timeoutMillis);
+            }
+            boolean result = signalled;
+            signalled = false;
+            return result;
+        }
+
+        @Override
+        protected synchronized void wakeUp() {
+            signalled = true;
+            notifyAll();
+        }
+
+        // - PRIVATE
+
+        private boolean signalled = false;
+    }
+
+    /**
+     * Waiter for a suspended request, which is resumed (dispatched again) when woken up,
+     * without holding on to a container thread while waiting.
+     */
+    public static class ContinuationWaiter extends Waiter {
+
+        public ContinuationWaiter(Continuation continuation, Date returnBefore) {
+            this.continuation = continuation;
+            this.returnBefore = returnBefore;
+        }
+
+        public Date getReturnBefore() {
+            return returnBefore;
+        }
+
+        /**
+         * Suspends the request, unless the waiter was woken up since the last (re)dispatch.
+         *
+         * @return true if the request was suspended, false if it should check for messages again right away
+         */
+        public synchronized boolean suspend(long timeoutMillis) {
+            if (signalled) {
+                signalled = false;
+                return false;
+            }
+            continuation.setTimeout(timeoutMillis);
+            continuation.suspend();
+            suspended = true;
+            return true;
+        }
+
+        /**
+         * To be called when the suspended request is dispatched again, either resumed or expired.
+         */
+        public synchronized void resumed() {
+            suspended = false;
+            signalled = false;
+        }
+
+        @Override
+        protected synchronized void wakeUp() {
+            if (suspended) {
+                suspended = false;
+                try {
+                    continuation.resume();
+                } catch (IllegalStateException e) {
+                    // already expired and being dispatched again
+                }
+            } else {
+                signalled = true;
+            }
+        }
+
+        // - PRIVATE
+
+        private final Continuation continuation;
+        private final Date returnBefore;
+        private boolean suspended = false;
+        private boolean signalled = false;
+    }
+
+    /**
+     * Registers the waiter for all messages that may be in the provided scope:
+     * on the scope's channels if any, otherwise on its buses, otherwise on all messages.
+     *
+     * A waiter should be registered before checking for messages, so that no notifications are missed.
+     */
+    public void register(Waiter waiter, Scope scope) {
+        List<String> keys = new ArrayList<String>();
+        Set<String> channels = scope == null ? null : scope.getScopeFieldValues(BackplaneMessage.Field.CHANNEL);
+        Set<String> buses = scope == null ? null : scope.getScopeFieldValues(BackplaneMessage.Field.BUS);
+        if (channels != null && ! channels.isEmpty()) {
+            for (String channel : channels) {
+                keys.add(CHANNEL_PREFIX + channel);
+            }
+        } else if (buses != null && ! buses.isEmpty()) {
+            for (String bus : buses) {
+                keys.add(BUS_PREFIX + bus);
+            }
+        } else {
+            keys.add(ALL_MESSAGES);
+        }
+
+        synchronized (this) {
+            for (String key : keys) {
+                Set<Waiter> keyWaiters = waiters.get(key);
+                if (keyWaiters == null) {
+                    keyWaiters = new CopyOnWriteArraySet<Waiter>();
+                    waiters.put(key, keyWaiters);
+                }
+                keyWaiters.add(waiter);
+            }
+            waiter.keys.addAll(keys);
+        }
+    }
+
+    public synchronized void unregister(Waiter waiter) {
+        for (String key : waiter.keys) {
+            Set<Waiter> keyWaiters = waiters.get(key);
+            if (keyWaiters != null) {
+                keyWaiters.remove(waiter);
+                if (keyWaiters.isEmpty()) {
+                    waiters.remove(key);
+                }
+            }
+        }
+        waiter.keys.clear();
+    }
+
+    /**
+     * Wakes up the waiters registered for the message's channel, bus, or for all messages.
+     */
+    public void messageAdded(String bus, String channel) {
+        wakeUp(waiters.get(CHANNEL_PREFIX + channel));
+        wakeUp(waiters.get(BUS_PREFIX + bus));
+        wakeUp(waiters.get(ALL_MESSAGES));
+    }
+
+    public int getWaiterCount() {
+        Set<Waiter> all = new HashSet<Waiter>();
+        for (Set<Waiter> keyWaiters : waiters.values()) {
+            all.addAll(keyWaiters);
+        }
+        return all.size();
+    }
+
+    // - PRIVATE
+
+    private static final Logger logger = Logger.getLogger(MessageWaiters.class);
+
+    private static final String CHANNEL_PREFIX = "c:";
+    private static final String BUS_PREFIX = "b:";
+    private static final String ALL_MESSAGES = "*";
+
+    private static final MessageWaiters instance = new MessageWaiters();
+
+    private final Map<String, Set<Waiter>> waiters = new ConcurrentHashMap<String, Set<Waiter>>();
+
+    private final Gauge waitersGauge = Metrics.newGauge(new MetricName("v2", this.getClass().getName().replace(".","_"), "blocked_requests"), new Gauge<Integer>() {
+        @Override
+        public Integer value() {
+            return getWaiterCount();
+        }
+    });
+
+    private MessageWaiters() {}
+
+    private void wakeUp(Set<Waiter> keyWaiters) {
+        if (keyWaiters == null) return;
+        for (Waiter waiter : keyWaiters) {
+            try {
+                waiter.wakeUp();
+            } catch (Exception e) {
+                logger.warn("error waking up message waiter: " + e.getMessage(), e);
+            }
+        }
+    }
+}
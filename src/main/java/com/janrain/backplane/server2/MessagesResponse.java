@@ -1,6 +1,7 @@
 package com.janrain.backplane.server2;
 
 import com.janrain.backplane.common.BackplaneServerException;
+import com.janrain.backplane.common.JsonUtils;
 import org.apache.commons.lang.StringUtils;
 
 import java.util.*;
@@ -45,9 +46,10 @@ public class MessagesResponse {
     }
 
     public Map<String, Object> asResponseFields(String serverName, boolean privileged) throws BackplaneServerException {
-        List<Map<String,Object>> frames = new ArrayList<Map<String, Object>>();
+        String escapedServerName = JsonUtils.escape(serverName);
+        List<JsonUtils.RawJson> frames = new ArrayList<JsonUtils.RawJson>();
         for (BackplaneMessage message : messages) {
-            frames.add(message.asFrame(serverName, privileged));
+            frames.add(new JsonUtils.RawJson(message.asFrameJson(escapedServerName, privileged)));
         }
 
         Map<String, Object> messagesResponse = new HashMap<String, Object>();
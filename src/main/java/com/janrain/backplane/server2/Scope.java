@@ -27,8 +27,14 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Immutable set of scope key-values.
+ *
+ * Scopes parsed from scope strings should be obtained through valueOf(), which shares instances per distinct scope string.
+ *
  * @author Tom Raney, Johnny Bufu
  */
 public class Scope {
@@ -40,42 +46,70 @@ public class Scope {
         AUTHZ_REQ   // message field can only be used with privileged, authenticated and authorized token requests
     }
 
+    /**
+     * @param scopeString String representation of the scope as defined in the Backplane 2.0 spec
+     *
+     * @return the (shared) Scope instance for the provided scope string
+     */
+    public static Scope valueOf(String scopeString) throws TokenException {
+        String key = scopeString == null ? "" : scopeString;
+        Scope scope = internedScopes.get(key);
+        if (scope == null) {
+            scope = new Scope(key);
+            if (internedScopes.size() >= MAX_INTERNED_SCOPES) {
+                // bounded, not LRU: drop an arbitrary entry, it will be parsed again if still in use
+                Iterator<String> keys = internedScopes.keySet().iterator();
+                if (keys.hasNext()) {
+                    internedScopes.remove(keys.next());
+                }
+            }
+            Scope existing = internedScopes.putIfAbsent(key, scope);
+            if (existing != null) {
+                scope = existing;
+            }
+        }
+        return scope;
+    }
+
     /**
      * @param scopeString String representation of the scope as defined in the Backplane 2.0 spec
      */
     public Scope(String scopeString) throws TokenException {
         this.scopes = parseScopeString(scopeString);
+        this.authorizationRequired = checkAuthorizationRequired(scopes);
     }
 
     public Scope(final BackplaneMessage.Field scopeField, final String value) {
-        this.scopes = new LinkedHashMap<BackplaneMessage.Field, LinkedHashSet<String>>() {{
+        this(new LinkedHashMap<BackplaneMessage.Field, LinkedHashSet<String>>() {{
             put(scopeField, new LinkedHashSet<String>() {{ add(value); }});
-        }};
+        }});
     }
 
     public Scope(Map<BackplaneMessage.Field, LinkedHashSet<String>> scopeMap) {
-        this.scopes = new LinkedHashMap<BackplaneMessage.Field, LinkedHashSet<String>>(scopeMap);
+        this.scopes = copyOf(scopeMap);
+        this.authorizationRequired = checkAuthorizationRequired(scopes);
     }
 
     /**
-     * @return a copy of this scope's internal map of scope key-values
+     * @return a (modifiable) copy of this scope's internal map of scope key-values
      */
     public Map<BackplaneMessage.Field, LinkedHashSet<String>> getScopeMap() {
         Map<BackplaneMessage.Field, LinkedHashSet<String>> mapCopy = new LinkedHashMap<BackplaneMessage.Field, LinkedHashSet<String>>();
-        mapCopy.putAll(scopes);
+        for (Map.Entry<BackplaneMessage.Field, Set<String>> entry : scopes.entrySet()) {
+            mapCopy.put(entry.getKey(), new LinkedHashSet<String>(entry.getValue()));
+        }
         return mapCopy;
     }
 
+    /**
+     * @return unmodifiable set of values for the provided scope field, or null if the field is not present in this scope
+     */
     public Set<String> getScopeFieldValues(BackplaneMessage.Field field) {
         return scopes.get(field);
     }
 
     public boolean isAuthorizationRequired() {
-        for(BackplaneMessage.Field scopeKey : scopes.keySet()) {
-            LinkedHashSet<String> values = scopes.get(scopeKey);
-            if (scopeKey.getScopeType() == ScopeType.AUTHZ_REQ && values != null && ! values.isEmpty()) return true;
-        }
-        return false;
+        return authorizationRequired;
     }
 
     /**
@@ -84,7 +118,7 @@ public class Scope {
     public List<Scope> getAuthReqScopes() {
         List<Scope> authReqScopes = new ArrayList<Scope>();
         for(BackplaneMessage.Field scopeKey : scopes.keySet()) {
-            LinkedHashSet<String> values = scopes.get(scopeKey);
+            Set<String> values = scopes.get(scopeKey);
             if (scopeKey.getScopeType() == ScopeType.AUTHZ_REQ && values != null && ! values.isEmpty()) {
                 for(String value : values) {
                     authReqScopes.add(new Scope(scopeKey, value));
@@ -96,9 +130,8 @@ public class Scope {
 
 
     public boolean isMessageInScope(@NotNull BackplaneMessage message) {
-        for(BackplaneMessage.Field scopeField : scopes.keySet()) {
-            LinkedHashSet<String> scopeValues = scopes.get(scopeField);
-            if (scopeValues == null || ! scopeValues.contains(message.get(scopeField))) return false;
+        for(Map.Entry<BackplaneMessage.Field, Set<String>> entry : scopes.entrySet()) {
+            if ( ! entry.getValue().contains(message.get(entry.getKey()))) return false;
         }
         return true;
     }
@@ -120,7 +153,7 @@ public class Scope {
     @Override
     public String toString() {
         StringBuilder scopeString = new StringBuilder();
-        for (Map.Entry<BackplaneMessage.Field, LinkedHashSet<String>> entry : scopes.entrySet()) {
+        for (Map.Entry<BackplaneMessage.Field, Set<String>> entry : scopes.entrySet()) {
             if (entry.getValue().isEmpty()) {
                 logger.info("empty scope values for key: " + entry.getKey()); // shouldn't happen
                 continue;
@@ -138,12 +171,12 @@ public class Scope {
         if (this == otherObject) return true;
         if (otherObject == null || getClass() != otherObject.getClass()) return false;
         Scope scope = (Scope) otherObject;
-        return !(scopes != null ? !scopes.equals(scope.scopes) : scope.scopes != null);
+        return scopes.equals(scope.scopes);
     }
 
     @Override
     public int hashCode() {
-        return scopes != null ? scopes.hashCode() : 0;
+        return scopes.hashCode();
     }
 
     /**
@@ -199,10 +232,10 @@ public class Scope {
     public static Scope revoke(@NotNull Scope scope, @NotNull Scope revoke) {
         Map<BackplaneMessage.Field,LinkedHashSet<String>> newScope = new LinkedHashMap<BackplaneMessage.Field, LinkedHashSet<String>>();
 
-        for(BackplaneMessage.Field scopeKey : scope.getScopeMap().keySet()) {
+        for(BackplaneMessage.Field scopeKey : scope.scopes.keySet()) {
             Set<String> revokeValues = revoke.getScopeFieldValues(scopeKey);
             if(scopeKey.getScopeType() != ScopeType.AUTHZ_REQ || revokeValues == null || revokeValues.isEmpty()) {
-                newScope.put(scopeKey, scope.getScopeMap().get(scopeKey));
+                newScope.put(scopeKey, new LinkedHashSet<String>(scope.getScopeFieldValues(scopeKey)));
             } else {
                 LinkedHashSet<String> newValues = new LinkedHashSet<String>();
                 for(String scopeValue : scope.getScopeFieldValues(scopeKey)) {
@@ -256,6 +289,8 @@ public class Scope {
 
     private static final int MAX_PARAMETERS = 100;
 
+    private static final int MAX_INTERNED_SCOPES = 10000;
+
     private static final String SEPARATOR = " ";
     private static final String DELIMITER = ":";
 
@@ -267,9 +302,28 @@ public class Scope {
         }
     }};
 
-    private Map<BackplaneMessage.Field,LinkedHashSet<String>> scopes;
+    private static final ConcurrentMap<String,Scope> internedScopes = new ConcurrentHashMap<String, Scope>();
+
+    private final Map<BackplaneMessage.Field,Set<String>> scopes;
+    private final boolean authorizationRequired;
+
+    private static Map<BackplaneMessage.Field,Set<String>> copyOf(Map<BackplaneMessage.Field, LinkedHashSet<String>> scopeMap) {
+        Map<BackplaneMessage.Field,Set<String>> copy = new LinkedHashMap<BackplaneMessage.Field, Set<String>>();
+        for (Map.Entry<BackplaneMessage.Field, LinkedHashSet<String>> entry : scopeMap.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue() == null ? Collections.<String>emptySet() :
+                                     Collections.unmodifiableSet(new LinkedHashSet<String>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private static boolean checkAuthorizationRequired(Map<BackplaneMessage.Field,Set<String>> scopes) {
+        for(Map.Entry<BackplaneMessage.Field, Set<String>> entry : scopes.entrySet()) {
+            if (entry.getKey().getScopeType() == ScopeType.AUTHZ_REQ && ! entry.getValue().isEmpty()) return true;
+        }
+        return false;
+    }
 
-    private static Map<BackplaneMessage.Field, LinkedHashSet<String>> parseScopeString(String scopeString) throws TokenException {
+    private static Map<BackplaneMessage.Field, Set<String>> parseScopeString(String scopeString) throws TokenException {
 
         Map<BackplaneMessage.Field,LinkedHashSet<String>> scopes = new LinkedHashMap<BackplaneMessage.Field, LinkedHashSet<String>>();
         logger.debug("parsing scopeString = '" + scopeString + "' ...");
@@ -289,7 +343,7 @@ public class Scope {
             }
         }
         logger.debug("parsed scopes: " + scopes);
-        return scopes;
+        return copyOf(scopes);
     }
 
     private static Pair<BackplaneMessage.Field, String> parseScopeToken(String token) throws TokenException {
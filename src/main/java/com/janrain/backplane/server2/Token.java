@@ -70,8 +70,8 @@ public class Token extends ExternalizableCore {
             AbstractMessage.validateNotBlank(TokenField.BACKING_GRANTS.getFieldName(), get(Token.TokenField.BACKING_GRANTS));
         } else {
             Scope anonScope = getScope();
-            LinkedHashSet<String> buses = anonScope.getScopeMap().get(BackplaneMessage.Field.BUS);
-            LinkedHashSet<String> channels = anonScope.getScopeMap().get(BackplaneMessage.Field.CHANNEL);
+            Set<String> buses = anonScope.getScopeFieldValues(BackplaneMessage.Field.BUS);
+            Set<String> channels = anonScope.getScopeFieldValues(BackplaneMessage.Field.CHANNEL);
             if (buses == null || buses.size() > 1 || channels == null || channels.size() > 1) {
                 throw new MessageException("invalid scope for anonymous token, must have exactly one bus and one channel specified: " + anonScope);
             }
@@ -87,8 +87,15 @@ public class Token extends ExternalizableCore {
     }
 
     public Scope getScope()  {
+        String scopeString = this.get(TokenField.SCOPE);
+        Pair<String,Scope> memo = scope;
+        if (memo != null && memo.getLeft() == scopeString) {
+            return memo.getRight();
+        }
         try {
-            return new Scope(this.get(TokenField.SCOPE));
+            Scope parsed = Scope.valueOf(scopeString);
+            scope = new Pair<String, Scope>(scopeString, parsed);
+            return parsed;
         } catch (TokenException e) {
             throw new IllegalStateException("Invalid scope on get(), should have been validated on token creation: " + this.get(TokenField.SCOPE));
         }
@@ -206,7 +213,7 @@ public class Token extends ExternalizableCore {
             public void validate(String value) throws MessageException {
                 super.validate(value);
                 try {
-                    new Scope(value);
+                    Scope.valueOf(value);
                 } catch (TokenException e) {
                     throw new InvalidRequestException("Invalid scope: " + value);
                 }
@@ -300,6 +307,9 @@ public class Token extends ExternalizableCore {
     
     private static final Logger logger = Logger.getLogger(Token.class);
 
+    /** scope string and its parsed Scope, the scope field doesn't change once the token is created */
+    private transient volatile Pair<String,Scope> scope;
+
     private static final int TOKEN_LENGTH = 20;
 
     private static final String GRANTS_SEPARATOR = " ";
@@ -17,11 +17,14 @@
 package com.janrain.backplane.server2;
 
 
+import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.BpSerialUtils;
 import com.janrain.backplane.common.DateTimeUtils;
 import com.janrain.backplane.config.BackplaneConfig;
 import com.janrain.backplane.config.BackplaneSystemProps;
+import com.janrain.backplane.redis.MessageAlert;
 import com.janrain.backplane.redis.Redis;
+import com.janrain.backplane.redis.RedisScript;
 import com.janrain.backplane.server2.dao.BP2DAOs;
 import com.janrain.backplane.server2.dao.redis.RedisBackplaneMessageDAO;
 import com.janrain.commons.util.Pair;
@@ -34,47 +37,106 @@ import com.yammer.metrics.core.MetricName;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Processes the messages of one v2 message queue partition; one leader-elected processor runs for each partition.
+ *
  * @author Tom Raney
  */
 public class V2MessageProcessor implements LeaderSelectorListener {
 
-    public void scheduleCleanupMessage() {
-        logger.info("creating v2 message cleanup thread");
-        ScheduledExecutorService messageWorkerTask = Executors.newScheduledThreadPool(1);
-        messageWorkerTask.scheduleAtFixedRate(new Runnable() {
+    public V2MessageProcessor(int partition) {
+        this.partition = partition;
+        this.queueKey = RedisBackplaneMessageDAO.getQueueKey(partition);
+        this.signalKey = RedisBackplaneMessageDAO.getQueueSignalKey(partition);
+        String scope = partition == 0 ? null : "partition_" + partition;
+        this.timeInQueue = Metrics.newHistogram(new MetricName("v2", this.getClass().getName().replace(".", "_"), "time_in_queue", scope));
+        this.batchSizes = Metrics.newHistogram(new MetricName("v2", this.getClass().getName().replace(".", "_"), "batch_size", scope));
+    }
+
+    /**
+     * @return the ZooKeeper leader path for the processor of the given partition
+     */
+    public static String getLeaderPath(int partition) {
+        return partition == 0 ? "/v2_worker" : "/v2_worker_" + partition;
+    }
+
+    /**
+     * Schedules the expired messages cleanup, which runs while this node leads partition 0.
+     *
+     * @return the scheduled cleanup, to be cancelled when the leadership ends
+     */
+    public synchronized ScheduledFuture<?> scheduleCleanupMessage() {
+        if (cleanupExecutor == null) {
+            logger.info("creating v2 message cleanup thread");
+            cleanupExecutor = Executors.newScheduledThreadPool(1);
+            // register worker
+            BackplaneConfig.addToBackgroundServices("v2 cleanup", cleanupExecutor);
+        }
+        return cleanupExecutor.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 cleanupMessages();
             }
-        }, 1, 2, TimeUnit.HOURS);
-
-        // register worker
-        BackplaneConfig.addToBackgroundServices("v2 cleanup", messageWorkerTask);
+        }, CLEANUP_INTERVAL_SECONDS, CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     /**
-     * Processor to pull messages off queue and make them available
+     * Processor to pull messages off queue and make them available.
+     *
+     * Drains the queue without pausing, doubling the batch size (up to BP_MESSAGE_BATCH_MAX) while batches come back full,
+     * and blocks on the queue signal list when the queue is empty.
      *
+     * Returns, releasing the partition's leadership, only if the queue keeps changing under this processor.
      */
     public void insertMessages() {
 
+        boolean released = false;
         try {
-            logger.info("v2 message processor started");
+            logger.info("v2 message processor started for queue " + queueKey + ", max batch size: " + maxBatchSize);
+            int batchSize = MIN_BATCH_SIZE;
+            int conflicts = 0;
             while (true) {
                 try {
-                    processSingleBatchOfPendingMessages();
-                    Thread.sleep(150);
+                    int processed = processSingleBatchOfPendingMessages(batchSize);
+                    if (processed < 0) {
+                        // another processor took messages off this partition's queue, e.g. during a leadership change
+                        if (++conflicts > MAX_QUEUE_CONFLICTS) {
+                            logger.error("v2 queue " + queueKey + " keeps changing under this processor, releasing partition " + partition);
+                            released = true;
+                            return;
+                        }
+                        backOff(conflicts);
+                        continue;
+                    }
+                    conflicts = 0;
+                    if (processed == 0) {
+                        batchSize = MIN_BATCH_SIZE;
+                        waitForMessages();
+                    } else if (processed == batchSize) {
+                        // the queue is backing up
+                        batchSize = Math.min(batchSize * 2, maxBatchSize);
+                    } else {
+                        batchSize = Math.max(MIN_BATCH_SIZE, processed);
+                    }
+                    if (processed > 0) {
+                        batchSizes.update(processed);
+                    }
                 } catch (Exception e) {
                     logger.warn(e);
                     try {
@@ -85,8 +147,10 @@ public class V2MessageProcessor implements LeaderSelectorListener {
                 }
             }
         } finally {
-            // very bad if we get here...
-            logger.error("method exited but it should NEVER do so");
+            if (! released) {
+                // very bad if we get here...
+                logger.error("method exited but it should NEVER do so");
+            }
         }
     }
 
@@ -101,7 +165,42 @@ public class V2MessageProcessor implements LeaderSelectorListener {
         }
     }
 
-    private void processSingleBatchOfPendingMessages() throws Exception {
+    /**
+     * Blocks until a new message is signalled, or for at most IDLE_WAIT_SECONDS.
+     */
+    private void waitForMessages() {
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getWriteJedis();
+            jedis.blpop(IDLE_WAIT_SECONDS, signalKey);
+            // the queue is fully drained next, clear the signals for messages already in the queue
+            jedis.del(signalKey);
+        } catch (JedisConnectionException e) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
+    }
+
+    /**
+     * Sleeps for a randomized, exponentially growing delay before the next queue conflict retry.
+     */
+    private void backOff(int conflicts) {
+        long delay = QUEUE_CONFLICT_BACKOFF_MILLIS << Math.min(conflicts - 1, 5);
+        try {
+            Thread.sleep(delay / 2 + (long) (random.nextDouble() * delay));
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return the number of messages taken off the queue, or -1 if the queue head changed since the batch was read
+     * or the insert lock expired before the batch was inserted
+     */
+    private int processSingleBatchOfPendingMessages(int batchSize) throws Exception {
 
         Jedis jedis = null;
 
@@ -111,45 +210,71 @@ public class V2MessageProcessor implements LeaderSelectorListener {
 
             List<String> insertionTimes = new ArrayList<String>();
 
-            // set watch on V1_LAST_ID
-            // needs to be set before retrieving the value stored at this key
-            jedis.watch(V2_LAST_ID);
-
-            Pair<String,Date> lastIdAndDate = getLastMessageId(jedis);
-            String newId = lastIdAndDate.getLeft();
-
-            // retrieve a handful of messages (ten) off the queue for processing
-            List<byte[]> messagesToProcess = jedis.lrange(RedisBackplaneMessageDAO.V2_MESSAGE_QUEUE.getBytes(), 0, 9);
+            // retrieve a batch of messages off the queue for processing
+            List<byte[]> messagesToProcess = jedis.lrange(queueKey.getBytes(), 0, batchSize - 1);
 
             // only enter the next block if we have messages to process
             if (messagesToProcess.size() > 0) {
 
-                Transaction transaction = jedis.multi();
-
-                insertionTimes.clear();
+                List<BackplaneMessage> backplaneMessages = new ArrayList<BackplaneMessage>();
+                Map<String, Long> busTrimScores = new HashMap<String, Long>();
 
-                // <ATOMIC> - redis transaction
                 for (byte[] messageBytes : messagesToProcess) {
 
-                    if (messageBytes != null) {
-                        BackplaneMessage backplaneMessage = (BackplaneMessage) BpSerialUtils.deserialize(messageBytes);
+                    BackplaneMessage backplaneMessage = null;
+                    try {
+                        backplaneMessage = messageBytes == null ? null : (BackplaneMessage) BpSerialUtils.deserialize(messageBytes);
+                    } catch (Exception e) {
+                        // drop it, rather than blocking the queue
+                        logger.error("discarding invalid message from the v2 queue: " + e.getMessage(), e);
+                    }
 
-                        if (backplaneMessage != null) {
-                            newId = processSingleMessage(backplaneMessage, transaction, insertionTimes, lastIdAndDate);
-                        }
+                    if (backplaneMessage != null) {
+                        backplaneMessages.add(backplaneMessage);
+                        addBusTrimScore(backplaneMessage.getBus(), busTrimScores);
                     }
                 }
 
-                transaction.set(V2_LAST_ID, newId);
+                String lockOwner = acquireInsertLock(jedis);
+                try {
+                    Pair<String,Date> lastIdAndDate = getLastMessageId(jedis, jedis.get(V2_LAST_ID));
+
+                    List<byte[]> keys = new ArrayList<byte[]>();
+                    keys.add(V2_LAST_ID.getBytes());
+                    keys.add(queueKey.getBytes());
+                    keys.add(RedisBackplaneMessageDAO.V2_MESSAGES.getBytes());
+                    keys.add(RedisBackplaneMessageDAO.V2_MESSAGES_EXPIRY.getBytes());
+                    keys.add(V2_INSERT_LOCK.getBytes());
+
+                    List<byte[]> args = new ArrayList<byte[]>();
+                    args.add(lockOwner.getBytes());
+                    args.add(messagesToProcess.get(0));
+                    args.add(null); // new last ID, set below
+                    args.add(MessageAlert.CHANNEL.getBytes());
+                    args.add(Integer.toString(messagesToProcess.size()).getBytes());
+                    args.add(Long.toString(getIndexTrimScore(BusConfig2.getRetentionLimitSeconds())).getBytes());
+
+                    for (BackplaneMessage backplaneMessage : backplaneMessages) {
+                        lastIdAndDate = processSingleMessage(backplaneMessage, keys, args, insertionTimes, lastIdAndDate, busTrimScores);
+                    }
 
-                logger.info("processing transaction with " + insertionTimes.size() + " v2 message(s)");
-                List<Object> results = transaction.exec();
-                if (results == null || results.size() == 0) {
-                    // the transaction failed
-                    logger.warn("transaction failed! - halting work for now");
-                    return;
+                    // no new last ID if all messages in the batch were discarded; the script then only pops the batch
+                    args.set(2, (insertionTimes.isEmpty() ? "" : lastIdAndDate.getLeft()).getBytes());
+
+                    // <ATOMIC> - redis script, also releases the insert lock
+                    logger.info("processing batch of " + insertionTimes.size() + " v2 message(s)");
+                    Object inserted = INSERT_MESSAGES_SCRIPT.eval(jedis, keys, args);
+                    lockOwner = null;
+                    if (! Long.valueOf(1).equals(inserted)) {
+                        logger.warn("v2 queue " + queueKey + " head changed or insert lock expired before the batch was inserted, retrying");
+                        return -1;
+                    }
+                    // </ATOMIC> - redis script
+                } finally {
+                    if (lockOwner != null) {
+                        releaseInsertLock(jedis, lockOwner);
+                    }
                 }
-                // </ATOMIC> - redis transaction
 
                 logger.info("flushed " + insertionTimes.size() + " v2 messages");
                 long now = System.currentTimeMillis();
@@ -161,6 +286,7 @@ public class V2MessageProcessor implements LeaderSelectorListener {
                     }
                 }
             }
+            return messagesToProcess.size();
         } catch (Exception e) {
             // if we get here, something bonked, like a connection to the redis server
             logger.warn("an error occurred while trying to process v2 message batch: " + e.getMessage());
@@ -168,20 +294,48 @@ public class V2MessageProcessor implements LeaderSelectorListener {
             jedis = null;
             throw e;
         } finally {
-            try {
-                if (jedis != null) {
-                    jedis.unwatch();
-                    Redis.getInstance().releaseToPool(jedis);
-                }
-            } catch (Exception e) {
-                // ignore
-            }
+            Redis.getInstance().releaseToPool(jedis);
         }
     }
 
-    private Pair<String, Date> getLastMessageId(Jedis jedis) {
-        // retrieve the latest 'live' message ID
-        String latestMessageId = jedis.get(V2_LAST_ID);
+    /**
+     * Waits until this processor holds the insert lock, shared by the processors of all partitions.
+     *
+     * Message IDs are assigned under the lock, from the stored last ID, so that messages become visible
+     * in ID order: a reader that saw a message never misses an older one inserted later.
+     *
+     * @return the lock owner token, to be passed to the insert script or releaseInsertLock()
+     */
+    private String acquireInsertLock(Jedis jedis) throws InterruptedException {
+        String lockOwner = BackplaneSystemProps.getMachineName() + " " + partition + " " + lockCount.incrementAndGet();
+        List<byte[]> keys = new ArrayList<byte[]>();
+        keys.add(V2_INSERT_LOCK.getBytes());
+        List<byte[]> args = new ArrayList<byte[]>();
+        args.add(lockOwner.getBytes());
+        args.add(Long.toString(INSERT_LOCK_MILLIS).getBytes());
+        while (! Long.valueOf(1).equals(ACQUIRE_INSERT_LOCK_SCRIPT.eval(jedis, keys, args))) {
+            Thread.sleep(1 + random.nextInt(INSERT_LOCK_WAIT_MILLIS));
+        }
+        return lockOwner;
+    }
+
+    /**
+     * Releases the insert lock if still held by lockOwner; best effort, an unreleased lock expires.
+     */
+    private void releaseInsertLock(Jedis jedis, String lockOwner) {
+        try {
+            List<byte[]> keys = new ArrayList<byte[]>();
+            keys.add(V2_INSERT_LOCK.getBytes());
+            List<byte[]> args = new ArrayList<byte[]>();
+            args.add(lockOwner.getBytes());
+            RELEASE_INSERT_LOCK_SCRIPT.eval(jedis, keys, args);
+        } catch (Exception e) {
+            logger.warn("error releasing the v2 insert lock, it expires in " + INSERT_LOCK_MILLIS + "ms: " + e.getMessage());
+        }
+    }
+
+    private Pair<String, Date> getLastMessageId(Jedis jedis, String latestMessageId) {
+        // the latest 'live' message ID
         Date dateFromId = BackplaneMessage.getDateFromId(latestMessageId);
         return StringUtils.isEmpty(latestMessageId) || null == dateFromId ?
                 getLastMessageIdLegacy(jedis) :
@@ -214,75 +368,211 @@ public class V2MessageProcessor implements LeaderSelectorListener {
         return lastIdAndDate;
     }
 
-    /** @return the (possibly updated) message ID of the processed message */
-    private String processSingleMessage(BackplaneMessage backplaneMessage,
-                                 Transaction transaction, List<String> insertionTimes,
-                                 Pair<String, Date> lastIdAndDate) throws Exception {
-
-        try {
-            String oldId = backplaneMessage.getIdValue();
-            insertionTimes.add(oldId);
+    /**
+     * Assigns the message its final ID and adds its keys and arguments to the insert script call.
+     * Called with the insert lock held.
+     *
+     * @return the (possibly updated) message ID and date of the processed message, which is the last one from now on
+     */
+    private Pair<String, Date> processSingleMessage(BackplaneMessage backplaneMessage,
+                                                    List<byte[]> keys, List<byte[]> args, List<String> insertionTimes,
+                                                    Pair<String, Date> lastIdAndDate, Map<String, Long> busTrimScores) throws Exception {
+
+        String oldId = backplaneMessage.getIdValue();
+        insertionTimes.add(oldId);
+
+        // TOTAL ORDER GUARANTEE
+        // verify that the date portion of the new message ID is greater than all existing message ID dates
+        // if not, uptick id by 1 ms and insert
+        // this means that all message ids have unique time stamps, even if they
+        // arrived at the same time.
+        // the ID is part of the stored message and frame, so it is assigned here, under the insert lock
+
+        backplaneMessage.updateId(lastIdAndDate);
+        String newId = backplaneMessage.getIdValue();
+
+        // the message is final from here on, render its frame once for all reads
+        backplaneMessage.renderFrame();
+
+        // messageTime is guaranteed to be a unique identifier of the message
+        // because of the TOTAL ORDER mechanism above
+        long messageTime = BackplaneMessage.getDateFromId(newId).getTime();
+
+        keys.add(RedisBackplaneMessageDAO.getKey(newId));
+        keys.add(RedisBackplaneMessageDAO.getChannelKey(backplaneMessage.getChannel()));
+        keys.add(RedisBackplaneMessageDAO.getBusKey(backplaneMessage.getBus()));
+
+        // SETEX fails on 0, which would abort the script halfway
+        int ttlSeconds = Math.max(1, DateTimeUtils.getExpireSeconds(newId, backplaneMessage.get(BackplaneMessage.Field.EXPIRE), backplaneMessage.isSticky()));
+        args.add(Integer.toString(ttlSeconds).getBytes());
+        args.add(BpSerialUtils.serialize(backplaneMessage));
+        args.add(Long.toString(messageTime).getBytes());
+        args.add(newId.getBytes());
+        args.add((backplaneMessage.getBus() + " " + backplaneMessage.getChannel() + " " + newId).getBytes());
+        args.add(MessageAlert.encode("v2", backplaneMessage.getBus(), backplaneMessage.getChannel(), newId).getBytes());
+        args.add(Long.toString(System.currentTimeMillis() + ttlSeconds * 1000l).getBytes());
+
+        args.add(busTrimScores.get(backplaneMessage.getBus()).toString().getBytes());
+
+        logger.info("pipelined v2 message " + oldId + " -> " + newId);
+        return new Pair<String, Date>(newId, new Date(messageTime));
+    }
 
-            // TOTAL ORDER GUARANTEE
-            // verify that the date portion of the new message ID is greater than all existing message ID dates
-            // if not, uptick id by 1 ms and insert
-            // this means that all message ids have unique time stamps, even if they
-            // arrived at the same time.
+    /**
+     * Looks up the bus's index trim score, if not already known: messages of the bus older than this have expired,
+     * and are dropped from the channel and bus indexes.
+     */
+    private static void addBusTrimScore(String bus, Map<String, Long> busTrimScores) throws BackplaneServerException {
+        if (! busTrimScores.containsKey(bus)) {
+            BusConfig2 busConfig = BP2DAOs.getBusDao().get(bus);
+            busTrimScores.put(bus, getIndexTrimScore(busConfig == null ? BusConfig2.getRetentionLimitSeconds() : busConfig.getMaxRetentionSeconds()));
+        }
+    }
 
-            backplaneMessage.updateId(lastIdAndDate);
-            String newId = backplaneMessage.getIdValue();
+    private static final Logger logger = Logger.getLogger(V2MessageProcessor.class);
 
-            // messageTime is guaranteed to be a unique identifier of the message
-            // because of the TOTAL ORDER mechanism above
-            long messageTime = BackplaneMessage.getDateFromId(newId).getTime();
+    private static final String V2_LAST_ID = "v2_last_id";
 
-            // <ATOMIC>
-            // save the individual message by key & TTL
-            transaction.setex(RedisBackplaneMessageDAO.getKey(newId),
-                    DateTimeUtils.getExpireSeconds(backplaneMessage.getIdValue(), backplaneMessage.get(BackplaneMessage.Field.EXPIRE), backplaneMessage.isSticky()),
-                    BpSerialUtils.serialize(backplaneMessage));
+    private static final String V2_INSERT_LOCK = "v2_insert_lock";
 
-            // channel and bus sorted set index
-            transaction.zadd(RedisBackplaneMessageDAO.getChannelKey(backplaneMessage.getChannel()), messageTime,
-                    backplaneMessage.getIdValue().getBytes());
-            transaction.zadd(RedisBackplaneMessageDAO.getBusKey(backplaneMessage.getBus()), messageTime,
-                    backplaneMessage.getIdValue().getBytes());
+    /**
+     * Takes the insert lock, if free, for at most ARGV[2] milliseconds.
+     *
+     * KEYS: insert lock
+     * ARGV: lock owner, lock timeout millis
+     *
+     * @return 1 if the lock was taken, 0 if it is held by another processor
+     */
+    private static final RedisScript ACQUIRE_INSERT_LOCK_SCRIPT = new RedisScript(
+            "if redis.call('SETNX', KEYS[1], ARGV[1]) == 1 then\n" +
+            "  redis.call('PEXPIRE', KEYS[1], ARGV[2])\n" +
+            "  return 1\n" +
+            "end\n" +
+            "return 0\n");
 
-            // add message id to sorted set of all message ids as an index
-            String metaData = backplaneMessage.getBus() + " " + backplaneMessage.getChannel() + " " +
-                    backplaneMessage.getIdValue();
+    /**
+     * KEYS: insert lock
+     * ARGV: lock owner
+     */
+    private static final RedisScript RELEASE_INSERT_LOCK_SCRIPT = new RedisScript(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "  return redis.call('DEL', KEYS[1])\n" +
+            "end\n" +
+            "return 0\n");
 
-            transaction.zadd(RedisBackplaneMessageDAO.V2_MESSAGES.getBytes(), messageTime, metaData.getBytes());
+    /**
+     * Inserts a batch of processed messages: stores each message, adds it to the channel, bus and all-messages indexes,
+     * publishes its alert, then records the new last message ID and pops the batch off the queue.
+     *
+     * Processors of all partitions assign message IDs / times from the stored last ID while holding the insert lock,
+     * which keeps them globally increasing; this script releases the lock and only inserts if it was still held.
+     *
+     * Index entries scored below the trim scores belong to expired messages and are removed along the way,
+     * so that index sizes stay close to the number of live messages between expired message cleanups.
+     *
+     * KEYS: last ID, queue, all-messages index, expiry index, insert lock,
+     *       then for each message: message, channel index, bus index
+     * ARGV: insert lock owner, expected queue head, new last ID, alerts channel, number of queue entries to pop,
+     *       all-messages index trim score,
+     *       then for each message: TTL seconds, serialized message, score, message ID, all-messages index entry, alert,
+     *       expiration time, channel and bus index trim score
+     *
+     * @return 1 if the batch was inserted, 0 if the insert lock expired or the queue head changed since the batch was read
+     */
+    private static final RedisScript INSERT_MESSAGES_SCRIPT = new RedisScript(
+            "local locked = redis.call('GET', KEYS[5]) == ARGV[1]\n" +
+            "if locked then redis.call('DEL', KEYS[5]) end\n" +
+            "if not locked or redis.call('LINDEX', KEYS[2], 0) ~= ARGV[2] then\n" +
+            "  return 0\n" +
+            "end\n" +
+            "for m = 0, (#KEYS - 5) / 3 - 1 do\n" +
+            "  local k, a = 6 + m * 3, 7 + m * 8\n" +
+            "  redis.call('SETEX', KEYS[k], ARGV[a], ARGV[a + 1])\n" +
+            "  redis.call('ZADD', KEYS[k + 1], ARGV[a + 2], ARGV[a + 3])\n" +
+            "  redis.call('ZREMRANGEBYSCORE', KEYS[k + 1], '-inf', '(' .. ARGV[a + 7])\n" +
+            "  redis.call('ZADD', KEYS[k + 2], ARGV[a + 2], ARGV[a + 3])\n" +
+            "  redis.call('ZREMRANGEBYSCORE', KEYS[k + 2], '-inf', '(' .. ARGV[a + 7])\n" +
+            "  redis.call('ZADD', KEYS[3], ARGV[a + 2], ARGV[a + 4])\n" +
+            "  redis.call('ZADD', KEYS[4], ARGV[a + 6], ARGV[a + 4])\n" +
+            "  redis.call('PUBLISH', ARGV[4], ARGV[a + 5])\n" +
+            "end\n" +
+            "redis.call('ZREMRANGEBYSCORE', KEYS[3], '-inf', '(' .. ARGV[6])\n" +
+            "if ARGV[3] ~= '' then redis.call('SET', KEYS[1], ARGV[3]) end\n" +
+            "redis.call('LTRIM', KEYS[2], ARGV[5], -1)\n" +
+            "return 1\n");
+
+    private static final int MIN_BATCH_SIZE = 10;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    private static final int IDLE_WAIT_SECONDS = 1;
+    private static final int MAX_QUEUE_CONFLICTS = 10;
+    /** longer than a batch takes to prepare and insert; a lock left by a failed processor blocks inserts this long */
+    private static final long INSERT_LOCK_MILLIS = 5000l;
+    private static final int INSERT_LOCK_WAIT_MILLIS = 5;
+    private static final long QUEUE_CONFLICT_BACKOFF_MILLIS = 50l;
+    private static final long CLEANUP_INTERVAL_SECONDS = 10;
+    /** allowance for clock differences between the nodes posting and processing messages */
+    private static final long INDEX_TRIM_MARGIN_MILLIS = 60000l;
+
+    private static long getIndexTrimScore(int maxRetentionSeconds) {
+        return System.currentTimeMillis() - maxRetentionSeconds * 1000l - INDEX_TRIM_MARGIN_MILLIS;
+    }
 
-            // add message id to sorted set keyed by bus as an index
+    private static final long REBALANCE_DELAY_MILLIS = 5000l;
 
-            // make sure all subscribers get the update
-            transaction.publish("alerts", newId);
+    /** number of partitions processed on this node */
+    private static final AtomicInteger ledPartitions = new AtomicInteger(0);
 
-            // pop one message off the queue - which will only happen if this transaction is successful
-            transaction.lpop(RedisBackplaneMessageDAO.V2_MESSAGE_QUEUE);
-            // </ATOMIC>
+    private final int maxBatchSize = BackplaneSystemProps.getIntProperty(BackplaneSystemProps.BP_MESSAGE_BATCH_MAX, DEFAULT_MAX_BATCH_SIZE, MIN_BATCH_SIZE);
 
-            logger.info("pipelined v2 message " + oldId + " -> " + newId);
-            return newId;
-        } catch (Exception e) {
-            throw e;
-        }
+    private final int partition;
+    private final String queueKey;
+    private final String signalKey;
 
-    }
+    private final Histogram timeInQueue;
+    private final Histogram batchSizes;
 
-    private static final Logger logger = Logger.getLogger(V2MessageProcessor.class);
+    private final Random random = new Random();
+    private final AtomicLong lockCount = new AtomicLong(0);
 
-    private final Histogram timeInQueue = Metrics.newHistogram(new MetricName("v2", this.getClass().getName().replace(".", "_"), "time_in_queue"));
+    private ScheduledExecutorService cleanupExecutor;
 
-    private static final String V2_LAST_ID = "v2_last_id";
+    /**
+     * @return true if this node leads less than its share of the partitions, among the nodes competing for this one
+     */
+    private boolean isUnderFairShare(CuratorFramework curatorFramework) {
+        try {
+            int participants = Math.max(1, curatorFramework.getChildren().forPath(getLeaderPath(partition)).size());
+            int fairShare = (RedisBackplaneMessageDAO.getQueuePartitions() + participants - 1) / participants;
+            return ledPartitions.get() < fairShare;
+        } catch (Exception e) {
+            logger.warn("error counting v2 partition " + partition + " leader candidates: " + e.getMessage());
+            return true;
+        }
+    }
 
     @Override
     public void takeLeadership(CuratorFramework curatorFramework) throws Exception {
-        logger.info("[" + BackplaneSystemProps.getMachineName() + "] v2 leader elected for message processing");
-        scheduleCleanupMessage();
-        insertMessages();
-        logger.info("[" + BackplaneSystemProps.getMachineName() + "] v2 leader ended message processing");
+        // partition 0 also runs the cleanup and is always taken; others are left to less loaded nodes, if any
+        if (partition != 0 && ! isUnderFairShare(curatorFramework)) {
+            Thread.sleep(REBALANCE_DELAY_MILLIS);
+            if (! isUnderFairShare(curatorFramework)) {
+                logger.info("[" + BackplaneSystemProps.getMachineName() + "] releasing v2 partition " + partition + " leadership");
+                return;
+            }
+        }
+        logger.info("[" + BackplaneSystemProps.getMachineName() + "] v2 leader elected for message processing, partition " + partition);
+        ledPartitions.incrementAndGet();
+        ScheduledFuture<?> cleanup = partition == 0 ? scheduleCleanupMessage() : null;
+        try {
+            insertMessages();
+        } finally {
+            if (cleanup != null) {
+                // the next partition 0 leader runs the cleanup from now on
+                cleanup.cancel(false);
+            }
+            ledPartitions.decrementAndGet();
+        }
+        logger.info("[" + BackplaneSystemProps.getMachineName() + "] v2 leader ended message processing, partition " + partition);
     }
 
     @Override
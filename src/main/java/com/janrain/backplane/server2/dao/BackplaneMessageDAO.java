@@ -54,6 +54,9 @@ public interface BackplaneMessageDAO extends DAO<BackplaneMessage> {
 
     List<BackplaneMessage> retrieveMessagesByChannel(String channel) throws BackplaneServerException;
 
+    /**
+     * Removes (a bounded number of) expired messages from the message indexes; meant to be called often.
+     */
     void deleteExpiredMessages() throws BackplaneServerException;
 
 }
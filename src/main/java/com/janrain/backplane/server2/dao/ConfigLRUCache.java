@@ -3,16 +3,29 @@ package com.janrain.backplane.server2.dao;
 
 import com.janrain.commons.message.Message;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Size-bounded cache with approximate LRU eviction, optionally expiring entries older than a maximum age.
+ *
+ * Reads take no lock: entries are kept in a ConcurrentHashMap and only record when they were last read.
+ * When the cache grows over its size bound, the least recently read of EVICTION_SAMPLE_SIZE entries is evicted,
+ * until it fits again; samples are taken from a cursor that cycles through all entries.
+ *
+ * Null items can be cached (negative caching), getEntry() tells them apart from cache misses.
+ *
+ * Items are sized with Message.sizeBytes(); caches of other types override sizeBytes(T).
+ *
  * @author Johnny Bufu
  */
-public class ConfigLRUCache<T extends Message> {
+public class ConfigLRUCache<T> {
 
     // - PUBLIC
 
@@ -20,35 +33,172 @@ public class ConfigLRUCache<T extends Message> {
      * @param maxCacheSizeBytes max cache size in bytes; 0 or negative values effectively disable the cache
      */
     public ConfigLRUCache(long maxCacheSizeBytes) {
+        this(maxCacheSizeBytes, 0);
+    }
+
+    /**
+     * @param maxCacheSizeBytes max cache size in bytes; 0 or negative values effectively disable the cache
+     * @param maxAgeMillis entries older than this are treated as not cached; 0 or negative values disable expiration
+     */
+    public ConfigLRUCache(long maxCacheSizeBytes, long maxAgeMillis) {
         this.maxCacheSizeBytes = maxCacheSizeBytes;
+        this.maxAgeMillis = maxAgeMillis;
     }
 
-    public synchronized long getMaxCacheSizeBytes() {
+    public static class Entry<T> {
+
+        public @Nullable T getItem() {
+            return item;
+        }
+
+        public long getCachedAt() {
+            return cachedAt;
+        }
+
+        private final T item;
+        private final long cachedAt;
+        private final long sizeBytes;
+        private volatile long readAt;
+
+        private Entry(T item, long sizeBytes) {
+            this.item = item;
+            this.cachedAt = System.currentTimeMillis();
+            this.readAt = cachedAt;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    public interface Loader<T> {
+        @Nullable T load(String id);
+    }
+
+    public long getMaxCacheSizeBytes() {
         return maxCacheSizeBytes;
     }
 
-    public synchronized void setMaxCacheSizeBytes(long maxCacheSizeBytes) {
+    public void setMaxCacheSizeBytes(long maxCacheSizeBytes) {
         this.maxCacheSizeBytes = maxCacheSizeBytes;
+        evict();
+    }
+
+    public boolean isCached(String id) {
+        return getEntry(id) != null;
     }
 
-    public boolean isCached(String tokenId) {
-        return cache.keySet().contains(tokenId);
+    public T get(String id) {
+        Entry<T> entry = getEntry(id);
+        return entry == null ? null : entry.getItem();
     }
-    public synchronized T get(String id) {
-        return cache.get(id);
+
+    /**
+     * @return the cache entry for the provided id, holding a null item if null was cached for it,
+     * or null if the id is not cached (or its entry has expired)
+     */
+    public @Nullable Entry<T> getEntry(String id) {
+        Entry<T> entry = cache.get(id);
+        if (entry == null) return null;
+        long now = System.currentTimeMillis();
+        if (isExpired(entry, now)) {
+            remove(id, entry);
+            return null;
+        }
+        // skip the write if already marked, hot entries are read many times per millisecond
+        if (entry.readAt != now) {
+            entry.readAt = now;
+        }
+        return entry;
     }
 
-    public synchronized T add(T item) {
-        return cache.put(item.getIdValue(), item);
+    /**
+     * @return the cached item, or else the item returned by the loader, which is then cached
+     */
+    public @Nullable T get(String id, Loader<T> loader) {
+        Entry<T> entry = getEntry(id);
+        if (entry != null) {
+            return entry.getItem();
+        }
+        long version = invalidations.get();
+        T item = loader.load(id);
+        add(id, item);
+        // don't keep an item that may predate an invalidation received while loading it;
+        // invalidations are counted before the entry is deleted, so either check catches them
+        if (invalidations.get() != version) {
+            delete(id);
+        }
+        return item;
+    }
+
+    /**
+     * For Message items, cached under their ID.
+     */
+    public T add(T item) {
+        return add(((Message) item).getIdValue(), item);
     }
 
     /** allows caching of null items */
-    public synchronized T add(String id, T item) {
-        return cache.put(id, item);
+    public T add(String id, T item) {
+        Entry<T> entry = createEntry(id, item);
+        Entry<T> previous = cache.put(id, entry);
+        size.addAndGet(entry.sizeBytes - (previous == null ? 0 : previous.sizeBytes));
+        evict();
+        return previous == null ? null : previous.getItem();
     }
 
-    public synchronized T delete(String id) {
-        return cache.remove(id);
+    /**
+     * Adds the item only if the id is not already cached, e.g. to avoid replacing a concurrently cached invalidation.
+     *
+     * @return true if the item was added
+     */
+    public boolean addIfAbsent(String id, T item) {
+        Entry<T> entry = createEntry(id, item);
+        while (true) {
+            Entry<T> existing = cache.putIfAbsent(id, entry);
+            if (existing == null) {
+                size.addAndGet(entry.sizeBytes);
+                break;
+            }
+            if (! isExpired(existing, System.currentTimeMillis())) return false;
+            if (cache.replace(id, existing, entry)) {
+                size.addAndGet(entry.sizeBytes - existing.sizeBytes);
+                break;
+            }
+        }
+        evict();
+        return true;
+    }
+
+    public T delete(String id) {
+        Entry<T> removed = cache.remove(id);
+        if (removed == null) return null;
+        size.addAndGet(-removed.sizeBytes);
+        return removed.getItem();
+    }
+
+    /**
+     * Deletes the cached item, also if it is being loaded by get(String, Loader) meanwhile.
+     */
+    public void invalidate(String id) {
+        invalidations.incrementAndGet();
+        delete(id);
+    }
+
+    public void clear() {
+        for (String id : cache.keySet()) {
+            delete(id);
+        }
+    }
+
+    public long getSizeBytes() {
+        return size.get();
+    }
+
+    // - PROTECTED
+
+    /**
+     * @return the approximate footprint of the (non-null) item
+     */
+    protected long sizeBytes(@NotNull T item) {
+        return ((Message) item).sizeBytes();
     }
 
     // - PRIVATE
@@ -56,30 +206,66 @@ public class ConfigLRUCache<T extends Message> {
     private static final Logger logger = Logger.getLogger(ConfigLRUCache.class);
 
     private static final int DEFAULT_INITIAL_CAPACITY = 500;
-    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
 
+    /** approximate footprint of a cached null item, entry and key overhead */
+    private static final long NULL_ITEM_SIZE_BYTES = 100;
 
     private final AtomicLong size = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
 
-    private long maxCacheSizeBytes;
-
-    private final Map<String,T> cache = new LinkedHashMap<String, T>(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
-            int removed = 0;
-            Iterator<Map.Entry<String, T>> entries = entrySet().iterator();
-            while ( size.get() > maxCacheSizeBytes && entries.hasNext()) {
-                Map.Entry<String, T> next = entries.next();
-                entries.remove();
-                size.addAndGet( -1 * next.getValue().sizeBytes());
-                removed++;
-            }
-            if (removed > 0) {
-                logger.info( "Removed " + removed + " " + eldest.getClass().getSimpleName() + " items from cache, " +
-                             "new size is: " + size() + " items / " + size.get() + " bytes");
+    private volatile long maxCacheSizeBytes;
+    private final long maxAgeMillis;
+
+    private final ConcurrentMap<String,Entry<T>> cache = new ConcurrentHashMap<String, Entry<T>>(DEFAULT_INITIAL_CAPACITY);
+
+    /** guards evictionCursor, evictions are serialized but don't block reads or writes */
+    private final Object evictionLock = new Object();
+    private Iterator<Map.Entry<String,Entry<T>>> evictionCursor;
+
+    private Entry<T> createEntry(String id, T item) {
+        return new Entry<T>(item, (item == null ? NULL_ITEM_SIZE_BYTES : sizeBytes(item)) + id.length());
+    }
+
+    private boolean isExpired(Entry<T> entry, long now) {
+        return maxAgeMillis > 0 && now - entry.getCachedAt() > maxAgeMillis;
+    }
+
+    /**
+     * Removes the entry only if it is still the one cached for the id.
+     */
+    private boolean remove(String id, Entry<T> entry) {
+        if (! cache.remove(id, entry)) return false;
+        size.addAndGet(-entry.sizeBytes);
+        return true;
+    }
+
+    private void evict() {
+        if (size.get() <= maxCacheSizeBytes) return;
+        int removed = 0;
+        synchronized (evictionLock) {
+            while (size.get() > maxCacheSizeBytes) {
+                String victimId = null;
+                Entry<T> victim = null;
+                for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+                    if (evictionCursor == null || ! evictionCursor.hasNext()) {
+                        evictionCursor = cache.entrySet().iterator();
+                        if (! evictionCursor.hasNext()) break;
+                    }
+                    Map.Entry<String,Entry<T>> sample = evictionCursor.next();
+                    if (victim == null || sample.getValue().readAt < victim.readAt) {
+                        victimId = sample.getKey();
+                        victim = sample.getValue();
+                    }
+                }
+                if (victim == null) break;
+                if (remove(victimId, victim)) {
+                    removed++;
+                }
             }
-            return false;
         }
-    };
-
+        if (removed > 0) {
+            logger.info("Removed " + removed + " items from cache, new size is: " + cache.size() + " items / " + size.get() + " bytes");
+        }
+    }
 }
@@ -18,6 +18,7 @@ package com.janrain.backplane.server2.dao;
 
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.dao.DAO;
+import com.janrain.backplane.server2.ClientGrants;
 import com.janrain.backplane.server2.Grant;
 import com.janrain.backplane.server2.oauth2.TokenException;
 import org.jetbrains.annotations.NotNull;
@@ -32,6 +33,11 @@ public interface GrantDAO extends DAO<Grant> {
 
     void update(Grant existing, Grant grant) throws BackplaneServerException, TokenException;
     List<Grant> getByClientId(String clientId) throws BackplaneServerException;
+
+    /**
+     * @return a view of the client's active grants, possibly cached; invalidated when the client's grants change
+     */
+    ClientGrants getClientGrants(String clientId) throws BackplaneServerException;
     void deleteByBuses(@NotNull List<String> busesToDelete) throws BackplaneServerException, TokenException;
 
     /**
@@ -5,12 +5,18 @@ import com.janrain.commons.message.Message;
 import com.janrain.commons.message.MessageException;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Cache for (Backplane) Messages
+ * Cache for (Backplane) Messages, ordered by message ID.
+ *
+ * Reads are lock-free; updates (add, eviction, reset) are serialized among themselves.
  *
  * @author Johnny Bufu
  */
@@ -25,32 +31,29 @@ public class MessageCache<T extends Message> {
         this.maxCacheSizeBytes = maxCacheSizeBytes;
     }
 
-    public synchronized long getMaxCacheSizeBytes() {
+    public long getMaxCacheSizeBytes() {
         return maxCacheSizeBytes;
     }
 
-    public synchronized void setMaxCacheSizeBytes(long maxCacheSizeBytes) {
+    public void setMaxCacheSizeBytes(long maxCacheSizeBytes) {
         this.maxCacheSizeBytes = maxCacheSizeBytes;
+        synchronized (updateLock) {
+            evict();
+        }
     }
 
-    public synchronized T get(String messageId) {
+    public T get(String messageId) {
         return cache.get(messageId);
     }
 
-    public synchronized T getFirstMessage() {
-        //noinspection LoopStatementThatDoesntLoop
-        for (T t : cache.values()) {
-            return t;
-        }
-        return null;
+    public T getFirstMessage() {
+        Map.Entry<String, T> first = cache.firstEntry();
+        return first == null ? null : first.getValue();
     }
 
-    public synchronized T getLastMessage() {
-        T last = null;
-        for (T t : cache.values()) {
-            last = t;
-        }
-        return last;
+    public T getLastMessage() {
+        Map.Entry<String, T> last = cache.lastEntry();
+        return last == null ? null : last.getValue();
     }
 
     /**
@@ -61,7 +64,7 @@ public class MessageCache<T extends Message> {
      * @param messages
      * @throws MessageException if any of the provided messages compares smaller than any existing message in the cache.
      */
-    public synchronized void add(List<T> messages) throws MessageException {
+    public void add(List<T> messages) throws MessageException {
 
         lastUpdated.set(System.currentTimeMillis());
 
@@ -69,20 +72,23 @@ public class MessageCache<T extends Message> {
 
         Collections.sort(messages);
 
-        T first = messages.get(0);
-        T lastCached = getLastMessage();
-        if (lastCached != null && first.compareTo(lastCached) < 0) {
-            throw new MessageException("Cache update rejected, newer messages exists: " + lastCached.getIdValue());
-        }
+        synchronized (updateLock) {
+            T first = messages.get(0);
+            T lastCached = getLastMessage();
+            if (lastCached != null && first.compareTo(lastCached) < 0) {
+                throw new MessageException("Cache update rejected, newer messages exists: " + lastCached.getIdValue());
+            }
 
-        for(T message : messages) {
-            cache.put(message.getIdValue(), message);
-            size.addAndGet(message.sizeBytes());
+            for(T message : messages) {
+                T previous = cache.put(message.getIdValue(), message);
+                size.addAndGet(message.sizeBytes() - (previous == null ? 0 : previous.sizeBytes()));
+            }
+            evict();
+            logger.info("Added " + messages.size() + " " + first.getClass().getSimpleName() + " items to cache");
         }
-        logger.info("Added " + messages.size() + " " + first.getClass().getSimpleName() + " items to cache");
     }
 
-    public synchronized @NotNull List<T> getMessagesSince(String sinceIso8601timestamp, long acceptableStaleMillis) {
+    public @NotNull List<T> getMessagesSince(String sinceIso8601timestamp, long acceptableStaleMillis) {
         return System.currentTimeMillis() - lastUpdated.get() < acceptableStaleMillis ? getMessagesSince(sinceIso8601timestamp) :
                new ArrayList<T>();
     }
@@ -92,46 +98,106 @@ public class MessageCache<T extends Message> {
      * all messages on or after the provided sinceIso8601timestamp are returned.
      * Otherwise an empty list is returned.
      */
-    public synchronized @NotNull List<T> getMessagesSince(String sinceIso8601timestamp) {
-        List<T> result = new ArrayList<T>();
+    public @NotNull List<T> getMessagesSince(String sinceIso8601timestamp) {
         T first = getFirstMessage();
         if (first != null && first.getIdValue().compareTo(sinceIso8601timestamp) <= 0) {
-            for(Map.Entry<String,T> entry : cache.entrySet()) {
-                if (entry.getValue().getIdValue().compareTo(sinceIso8601timestamp) > 0) {
-                    result.add(entry.getValue());
+            return new ArrayList<T>(cache.tailMap(sinceIso8601timestamp, false).values());
+        }
+        return new ArrayList<T>();
+    }
+
+    /**
+     * Returns the messages after the provided sinceIso8601timestamp, if the cache is known to hold all of them:
+     * the cache was updated within acceptableStaleMillis and since is not before the start of the cached window.
+     *
+     * @return the (possibly empty) list of messages after sinceIso8601timestamp, or null if the cache cannot tell
+     */
+    public @Nullable List<T> getMessagesSinceIfCached(String sinceIso8601timestamp, long acceptableStaleMillis) {
+        if (sinceIso8601timestamp == null || ! isInWindow(sinceIso8601timestamp) ||
+            System.currentTimeMillis() - lastUpdated.get() >= acceptableStaleMillis) {
+            return null;
+        }
+        List<T> result = new ArrayList<T>(cache.tailMap(sinceIso8601timestamp, false).values());
+        // the window start is moved before messages are removed, so a concurrent removal is detected here
+        return isInWindow(sinceIso8601timestamp) ? result : null;
+    }
+
+    /**
+     * Empties the cache and marks it as holding all messages after windowStart from now on.
+     */
+    public void reset(String windowStart) {
+        synchronized (updateLock) {
+            this.windowStart.set(null);
+            cache.clear();
+            size.set(0);
+            this.windowStart.set(windowStart);
+        }
+    }
+
+    /**
+     * Removes all messages on or before the provided ID / timestamp and moves the start of the cached window to it.
+     */
+    public void removeUpTo(String iso8601timestamp) {
+        synchronized (updateLock) {
+            moveWindowStart(iso8601timestamp);
+            ConcurrentNavigableMap<String, T> removed = cache.headMap(iso8601timestamp, true);
+            for (Map.Entry<String, T> entry : removed.entrySet()) {
+                if (cache.remove(entry.getKey()) != null) {
+                    size.addAndGet( -1 * entry.getValue().sizeBytes());
                 }
             }
         }
-        return result;
     }
 
     public long getLastUpdated() {
         return lastUpdated.get();
     }
 
+    public long getSizeBytes() {
+        return size.get();
+    }
+
     // - PRIVATE
 
     private static final Logger logger = Logger.getLogger(MessageCache.class);
 
-    private final LinkedHashMap<String,T> cache = new LinkedHashMap<String, T>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
-            int removed = 0;
-            Iterator<Map.Entry<String, T>> entries = entrySet().iterator();
-            while ( size.get() > maxCacheSizeBytes && entries.hasNext()) {
-                Map.Entry<String, T> next = entries.next();
-                entries.remove();
-                size.addAndGet( -1 * next.getValue().sizeBytes());
+    private final ConcurrentSkipListMap<String,T> cache = new ConcurrentSkipListMap<String, T>();
+
+    private final Object updateLock = new Object();
+
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicLong lastUpdated = new AtomicLong(0);
+    private volatile long maxCacheSizeBytes;
+
+    /** all messages after windowStart are cached; null if unknown */
+    private final AtomicReference<String> windowStart = new AtomicReference<String>();
+
+    private boolean isInWindow(String sinceIso8601timestamp) {
+        String start = windowStart.get();
+        return start != null && sinceIso8601timestamp.compareTo(start) >= 0;
+    }
+
+    /** must be called while holding the update lock */
+    private void evict() {
+        int removed = 0;
+        while (size.get() > maxCacheSizeBytes) {
+            Map.Entry<String, T> eldest = cache.firstEntry();
+            if (eldest == null) break;
+            moveWindowStart(eldest.getKey());
+            if (cache.remove(eldest.getKey()) != null) {
+                size.addAndGet( -1 * eldest.getValue().sizeBytes());
                 removed++;
             }
-            if (removed > 0) {
-                logger.info("Removed " + removed + " " + eldest.getClass().getSimpleName() + " items from cache, new size is: " + size() + " items / " + size.get() + " bytes");
-            }
-            return false;
         }
-    };
+        if (removed > 0) {
+            logger.info("Removed " + removed + " items from cache, new size is: " + cache.size() + " items / " + size.get() + " bytes");
+        }
+    }
 
-    private final AtomicLong size = new AtomicLong(0);
-    private final AtomicLong lastUpdated = new AtomicLong(0);
-    private long maxCacheSizeBytes;
+    private void moveWindowStart(String iso8601timestamp) {
+        String start = windowStart.get();
+        if (start != null && start.compareTo(iso8601timestamp) < 0) {
+            windowStart.set(iso8601timestamp);
+        }
+    }
 }
@@ -18,14 +18,20 @@ package com.janrain.backplane.server2.dao.redis;
 
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.BpSerialUtils;
-import com.janrain.backplane.common.RandomUtils;
+import com.janrain.backplane.common.DateTimeUtils;
+import com.janrain.backplane.config.BackplaneSystemProps;
+import com.janrain.backplane.redis.MessageCacheLoader;
+import com.janrain.backplane.redis.MessageIndexReaper;
 import com.janrain.backplane.redis.Redis;
 import com.janrain.backplane.server2.BackplaneMessage;
+import com.janrain.backplane.server2.MessageWaiters;
 import com.janrain.backplane.server2.MessagesResponse;
 import com.janrain.backplane.server2.Scope;
 import com.janrain.backplane.server2.Token;
 import com.janrain.backplane.server2.dao.BackplaneMessageDAO;
+import com.janrain.backplane.server2.dao.MessageCache;
 import com.janrain.backplane.server2.oauth2.TokenException;
+import com.janrain.commons.util.Pair;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -42,7 +48,33 @@ import java.util.*;
 public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
 
     final public static String V2_MESSAGE_QUEUE = "v2_message_queue";
+    final public static String V2_MESSAGE_QUEUE_SIGNAL = "v2_message_queue_signal";
     final public static String V2_MESSAGES = "v2_messages";
+    /** same entries as V2_MESSAGES, scored by message expiration time */
+    final public static String V2_MESSAGES_EXPIRY = "v2_messages_expiry";
+
+    /**
+     * Number of message queue partitions; must be the same on all nodes.
+     */
+    public static int getQueuePartitions() {
+        return QUEUE_PARTITIONS;
+    }
+
+    /**
+     * All messages of a bus go to the same queue partition, so they are processed in order.
+     */
+    public static int getQueuePartition(String bus) {
+        return QUEUE_PARTITIONS == 1 || bus == null ? 0 : (bus.hashCode() & 0x7fffffff) % QUEUE_PARTITIONS;
+    }
+
+    /** partition 0 uses the unpartitioned queue key */
+    public static String getQueueKey(int partition) {
+        return partition == 0 ? V2_MESSAGE_QUEUE : V2_MESSAGE_QUEUE + "_" + partition;
+    }
+
+    public static String getQueueSignalKey(int partition) {
+        return partition == 0 ? V2_MESSAGE_QUEUE_SIGNAL : V2_MESSAGE_QUEUE_SIGNAL + "_" + partition;
+    }
 
     public static byte[] getBusKey(String bus) {
         return ("v2_bus_idx_" + bus).getBytes();
@@ -56,6 +88,38 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
         return ("v2_message_" + key).getBytes();
     }
 
+    public RedisBackplaneMessageDAO() {
+        cacheLoader = new MessageCacheLoader<BackplaneMessage>("v2", V2_MESSAGES,
+                new MessageCache<BackplaneMessage>(MESSAGE_CACHE_MAX_BYTES), MESSAGE_CACHE_WINDOW_MILLIS) {
+            @Override
+            protected byte[] getMessageKey(String messageId) {
+                return getKey(messageId);
+            }
+
+            @Override
+            protected void messagesAdded(List<BackplaneMessage> messages) {
+                // wake up blocked requests only once the new messages can be served from the cache
+                for (BackplaneMessage message : messages) {
+                    MessageWaiters.getInstance().messageAdded(message.getBus(), message.getChannel());
+                }
+            }
+        };
+        cacheLoader.start();
+
+        indexReaper = new MessageIndexReaper("v2", V2_MESSAGES, V2_MESSAGES_EXPIRY) {
+            @Override
+            protected void removeMessage(Pipeline pipeline, String bus, String channel, String messageId) {
+                pipeline.zrem(getChannelKey(channel), messageId.getBytes());
+                pipeline.zrem(getBusKey(bus), messageId.getBytes());
+                pipeline.del(getKey(messageId));
+            }
+
+            @Override
+            protected byte[] getMessageKey(String messageId) {
+                return getKey(messageId);
+            }
+        };
+    }
 
     @Override
     public BackplaneMessage getLatestMessage() throws BackplaneServerException {
@@ -72,6 +136,10 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
                 }
             }
             return null;
+        } catch (JedisConnectionException jce) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw jce;
         } finally {
             Redis.getInstance().releaseToPool(jedis);
         }
@@ -105,75 +173,73 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
     @Override
     public void retrieveMessagesPerScope(@NotNull MessagesResponse bpResponse, @NotNull Token token) throws BackplaneServerException {
         final Scope scope = token.getScope();
+
+        if (retrieveCachedMessagesPerScope(bpResponse, scope)) return;
+
+        // each message is indexed by both its channel and its bus, and all scope fields are checked
+        // by filterMessagesPerScope() below, so reading the (narrower) channel indexes if present,
+        // or else the bus indexes, is enough to cover the scope
+        List<String> indexKeys = new ArrayList<String>();
+        Set<String> channelScopes = scope.getScopeFieldValues(BackplaneMessage.Field.CHANNEL);
+        Set<String> busScopes = scope.getScopeFieldValues(BackplaneMessage.Field.BUS);
+        if (channelScopes != null && ! channelScopes.isEmpty()) {
+            for(String channel : channelScopes) {
+                indexKeys.add(new String(getChannelKey(channel)));
+            }
+        } else if (busScopes != null && ! busScopes.isEmpty()) {
+            for(String bus : busScopes) {
+                indexKeys.add(new String(getBusKey(bus)));
+            }
+        }
+
         Jedis jedis = null;
         try {
             jedis = Redis.getInstance().getReadJedis();
-            Transaction t = jedis.multi();
-            List<String> unions = new ArrayList<String>();
-
-            Set<String> channelScopes = scope.getScopeFieldValues(BackplaneMessage.Field.CHANNEL);
-            if (channelScopes != null) {
-                String channelUnion = "scope_req_" + RandomUtils.randomString(10);
-                unions.add(channelUnion);
-                for(String channel : channelScopes) {
-                    t.zunionstore( channelUnion.getBytes(), new ZParams() {{aggregate(Aggregate.MAX);}},
-                            channelUnion.getBytes(), getChannelKey(channel) );
-                }
-            }
-            Set<String> busScopes = scope.getScopeFieldValues(BackplaneMessage.Field.BUS);
-            if (busScopes != null) {
-                String busUnion = "scope_req_" + RandomUtils.randomString(10);
-                unions.add(busUnion);
-                for(String bus : busScopes) {
-                    t.zunionstore( busUnion.getBytes(), new ZParams() {{aggregate(Aggregate.MAX);}},
-                            busUnion.getBytes(), getBusKey(bus));
-                }
+
+            Date lastMessageDate = BackplaneMessage.getDateFromId(bpResponse.getLastMessageId());
+            long lastMessageTime = lastMessageDate == null ? 0 : lastMessageDate.getTime();
+
+            Pipeline pipeline = jedis.pipelined();
+            Response<Set<String>> lastResponse = pipeline.zrange(V2_MESSAGES, -1, -1);
+            List<Response<Set<String>>> idResponses = new ArrayList<Response<Set<String>>>();
+            for(String indexKey : indexKeys) {
+                idResponses.add(pipeline.zrangeByScore(indexKey, lastMessageTime+1, Double.MAX_VALUE));
             }
-            String channelBusIntersection = null;
-            for(String union : unions) {
-                if (channelBusIntersection == null) {
-                    channelBusIntersection = union;
-                } else {
-                    t.zinterstore( channelBusIntersection.getBytes(), new ZParams() {{aggregate(Aggregate.MAX);}},
-                                   channelBusIntersection.getBytes(), union.getBytes());
-                }
+            pipeline.sync();
+
+            List<Set<String>> idRanges = new ArrayList<Set<String>>();
+            for(Response<Set<String>> idResponse : idResponses) {
+                idRanges.add(idResponse.get());
             }
+            List<String> messageIds = mergeMessageIds(idRanges);
 
-            Response<Set<byte[]>> lastResponse = t.zrange(V2_MESSAGES.getBytes(), -1, -1);
             List<BackplaneMessage> messages = new ArrayList<BackplaneMessage>();
-
-            if (channelBusIntersection != null) {
-                Date lastMessageDate = BackplaneMessage.getDateFromId(bpResponse.getLastMessageId());
-                long lastMessageTime = lastMessageDate == null ? 0 : lastMessageDate.getTime();
-                Response<Set<String>> busChannelMessageIds = t.zrangeByScore(channelBusIntersection,
-                        lastMessageTime+1, Double.MAX_VALUE);
-                for(String union : unions) t.del(union);
-                t.exec();
-                if (! busChannelMessageIds.get().isEmpty()) {
-                    List<byte[]> idBytes = new ArrayList<byte[]>();
-                    for(String msgId : busChannelMessageIds.get()) {
-                        idBytes.add(getKey(msgId));
-                    }
-                    for(byte[] messageBytes : jedis.mget(idBytes.toArray(new byte[idBytes.size()][]))) {
-                        if (messageBytes != null) messages.add((BackplaneMessage) BpSerialUtils.deserialize(messageBytes));
-                    }
-
+            if (! messageIds.isEmpty()) {
+                List<byte[]> idBytes = new ArrayList<byte[]>();
+                for(String msgId : messageIds) {
+                    idBytes.add(getKey(msgId));
+                }
+                for(byte[] messageBytes : jedis.mget(idBytes.toArray(new byte[idBytes.size()][]))) {
+                    if (messageBytes != null) messages.add((BackplaneMessage) BpSerialUtils.deserialize(messageBytes));
                 }
-            } else {
-                t.exec();
             }
 
             if ( ! messages.isEmpty()) {
                 filterMessagesPerScope(messages, scope, bpResponse);
             } else {
-                Set<byte[]> lastBytes = lastResponse.get();
-                if (lastBytes.isEmpty()) {
+                Set<String> lastMeta = lastResponse.get();
+                if (lastMeta.isEmpty()) {
                     bpResponse.setLastMessageId("");
                 } else {
-                    String lastMessageId = new String(lastBytes.iterator().next()).split(" ")[2];
+                    String lastMessageId = lastMeta.iterator().next().split(" ")[2];
                     bpResponse.setLastMessageId(lastMessageId);
                 }
             }
+        } catch (JedisConnectionException jce) {
+            logger.error(jce);
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw new BackplaneServerException(jce.getMessage());
         } catch (Exception e) {
             logger.error(e);
             throw new BackplaneServerException(e.getMessage());
@@ -184,6 +250,11 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
 
     @Override
     public List<BackplaneMessage> retrieveMessagesNoScope(@Nullable String sinceIso8601timestamp) throws BackplaneServerException {
+        List<BackplaneMessage> cached = cacheLoader.getCache().getMessagesSinceIfCached(sinceIso8601timestamp, MESSAGE_CACHE_MAX_STALE_MILLIS);
+        if (cached != null) {
+            return removeExpired(cached);
+        }
+
         Jedis jedis = null;
 
         try {
@@ -229,6 +300,10 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
 
             return messages;
 
+        } catch (JedisConnectionException jce) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw jce;
         } finally {
             Redis.getInstance().releaseToPool(jedis);
         }
@@ -273,6 +348,10 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
 
             return messages;
 
+        } catch (JedisConnectionException jce) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw jce;
         } finally {
             Redis.getInstance().releaseToPool(jedis);
         }
@@ -281,44 +360,7 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
 
     @Override
     public void deleteExpiredMessages() throws BackplaneServerException {
-
-        Jedis jedis = null;
-
-        try {
-
-            logger.info("preparing to cleanup v2 messages");
-
-            jedis = Redis.getInstance().getWriteJedis();
-
-            Set<byte[]> messageMetaBytes = jedis.zrangeByScore(V2_MESSAGES.getBytes(), 0, Double.MAX_VALUE);
-            if (messageMetaBytes != null) {
-                logger.info("scanning " + messageMetaBytes.size() + " v2 messages");
-                int messageCounter=0;
-                for (byte[] b : messageMetaBytes) {
-                    try {
-                        if (messageCounter++ % 100 == 0) {
-                            logger.info("still scanning v2 messages...");
-                        }
-                        String metaData = new String(b);
-                        String[] segs = metaData.split(" ");
-                        if (!jedis.exists(getKey(segs[2]))) {
-                            delete(segs[2]);
-                        }
-                    } catch (Exception e) {
-                        // ignore
-                    }
-                }
-            }
-        } catch (JedisConnectionException jce) {
-            logger.warn("exited v2 message cleanup: "+ jce.getMessage());
-            Redis.getInstance().releaseBrokenResourceToPool(jedis);
-            jedis=null;
-        } catch (Exception e) {
-            logger.warn(e);
-        } finally {
-            logger.info("exiting v2 message cleanup");
-            Redis.getInstance().releaseToPool(jedis);
-        }
+        indexReaper.run();
     }
 
     @Override
@@ -339,7 +381,24 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
     public void persist(BackplaneMessage obj) throws BackplaneServerException {
         // the messages will not be immediately available for reading until they
         // are inserted by the message processing thread.
-        Redis.getInstance().rpush(V2_MESSAGE_QUEUE.getBytes(), BpSerialUtils.serialize(obj));
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getWriteJedis();
+            int partition = getQueuePartition(obj.getBus());
+            String signalKey = getQueueSignalKey(partition);
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.rpush(getQueueKey(partition).getBytes(), BpSerialUtils.serialize(obj));
+            // wake up the message processor, if idle; one pending signal is enough
+            pipeline.rpush(signalKey, "1");
+            pipeline.ltrim(signalKey, 0, 0);
+            pipeline.sync();
+        } catch (JedisConnectionException e) {
+            Redis.getInstance().releaseBrokenResourceToPool(jedis);
+            jedis = null;
+            throw e;
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
     }
 
     @Override
@@ -395,8 +454,98 @@ public class RedisBackplaneMessageDAO implements BackplaneMessageDAO {
 
     private static final int MAX_MSGS_IN_FRAME = 25;
 
+    private static final long MESSAGE_CACHE_MAX_BYTES = 50 * 1024 * 1024;
+    private static final long MESSAGE_CACHE_WINDOW_MILLIS = 5 * 60 * 1000;
+    private static final long MESSAGE_CACHE_MAX_STALE_MILLIS = 3000;
+
     private static final Logger logger = Logger.getLogger(RedisBackplaneMessageDAO.class);
 
+    private static final int QUEUE_PARTITIONS = BackplaneSystemProps.getIntProperty(BackplaneSystemProps.BP_MESSAGE_QUEUE_PARTITIONS, 1, 1);
+
+    private final MessageCacheLoader<BackplaneMessage> cacheLoader;
+    private final MessageIndexReaper indexReaper;
+
+    /**
+     * Retrieves messages for the provided scope from the node-local message cache, if it holds all messages
+     * after the response's last message ID.
+     *
+     * @return true if the messages were retrieved from the cache, false if they need to be retrieved from redis
+     */
+    private boolean retrieveCachedMessagesPerScope(MessagesResponse bpResponse, Scope scope) {
+        MessageCache<BackplaneMessage> cache = cacheLoader.getCache();
+        List<BackplaneMessage> cached = cache.getMessagesSinceIfCached(bpResponse.getLastMessageId(), MESSAGE_CACHE_MAX_STALE_MILLIS);
+        if (cached == null) return false;
+
+        List<BackplaneMessage> messages = new ArrayList<BackplaneMessage>();
+        for (BackplaneMessage message : cached) {
+            // out of scope messages are filtered later, but still count for the last message id
+            if ( ! scope.isMessageInScope(message) || ! isExpired(message)) {
+                messages.add(message);
+            }
+        }
+
+        if ( ! messages.isEmpty()) {
+            filterMessagesPerScope(messages, scope, bpResponse);
+        } else {
+            BackplaneMessage last = cache.getLastMessage();
+            if (last != null && last.getIdValue().compareTo(bpResponse.getLastMessageId()) > 0) {
+                bpResponse.setLastMessageId(last.getIdValue());
+            }
+        }
+        return true;
+    }
+
+    private static boolean isExpired(BackplaneMessage message) {
+        Date expireTime = DateTimeUtils.getExpireTime(message.getIdValue(), message.get(BackplaneMessage.Field.EXPIRE), message.isSticky());
+        return expireTime != null && expireTime.getTime() < System.currentTimeMillis();
+    }
+
+    private static List<BackplaneMessage> removeExpired(List<BackplaneMessage> messages) {
+        Iterator<BackplaneMessage> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            if (isExpired(iterator.next())) {
+                iterator.remove();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Merges message ID ranges read from several indexes into a single, ordered list without duplicates.
+     * Message IDs are unique timestamps (see the total order guarantee in V2MessageProcessor),
+     * so ordering them as strings is the same as ordering them by index score.
+     */
+    static List<String> mergeMessageIds(List<Set<String>> idRanges) {
+        if (idRanges.size() == 1) {
+            return new ArrayList<String>(idRanges.get(0));
+        }
+
+        PriorityQueue<Pair<String, Iterator<String>>> heads = new PriorityQueue<Pair<String, Iterator<String>>>(
+                Math.max(1, idRanges.size()), new Comparator<Pair<String, Iterator<String>>>() {
+            @Override
+            public int compare(Pair<String, Iterator<String>> head1, Pair<String, Iterator<String>> head2) {
+                return head1.getLeft().compareTo(head2.getLeft());
+            }
+        });
+        for(Set<String> idRange : idRanges) {
+            Iterator<String> ids = idRange.iterator();
+            if (ids.hasNext()) heads.add(new Pair<String, Iterator<String>>(ids.next(), ids));
+        }
+
+        List<String> merged = new ArrayList<String>();
+        String last = null;
+        while (! heads.isEmpty()) {
+            Pair<String, Iterator<String>> head = heads.poll();
+            if (! head.getLeft().equals(last)) {
+                merged.add(head.getLeft());
+                last = head.getLeft();
+            }
+            Iterator<String> ids = head.getRight();
+            if (ids.hasNext()) heads.add(new Pair<String, Iterator<String>>(ids.next(), ids));
+        }
+        return merged;
+    }
+
     private void filterMessagesPerScope(List<BackplaneMessage> unfilteredMessages, Scope scope, MessagesResponse bpResponse) {
         // Filter and add to results
         List<BackplaneMessage> filteredMessages = new ArrayList<BackplaneMessage>();
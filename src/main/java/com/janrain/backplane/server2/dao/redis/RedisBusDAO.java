@@ -18,18 +18,17 @@ package com.janrain.backplane.server2.dao.redis;
 
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.BpSerialUtils;
-import com.janrain.backplane.redis.Redis;
+import com.janrain.backplane.redis.RedisEntityStore;
 import com.janrain.backplane.server2.BusConfig2;
 import com.janrain.backplane.server2.dao.BusDAO;
 import com.janrain.backplane.server2.dao.GrantDAO;
 import com.janrain.backplane.server2.oauth2.TokenException;
 import org.apache.log4j.Logger;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Response;
-import redis.clients.jedis.Transaction;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author Johnny Bufu
@@ -46,74 +45,37 @@ public class RedisBusDAO implements BusDAO {
 
     @Override
     public List<BusConfig2> retrieveByOwner(String busOwner) throws BackplaneServerException {
-        List<BusConfig2> buses = getAll();
-        List<BusConfig2> filtered = new ArrayList<BusConfig2>();
-        for (BusConfig2 busConfig : buses) {
-            if (busOwner.equals(busConfig.get(BusConfig2.Field.OWNER))) {
-                filtered.add(busConfig);
-            }
-        }
-        return filtered;
+        return store.getByIndex(OWNER_INDEX, busOwner);
     }
 
     @Override
     public void deleteByOwner(String busOwner) throws BackplaneServerException {
-        List<BusConfig2> buses = getAll();
-        for (BusConfig2 busConfig: buses) {
-            if (busOwner.equals(busConfig.get(BusConfig2.Field.OWNER))) {
-                delete(busConfig.getIdValue());
-            }
+        for (BusConfig2 busConfig : retrieveByOwner(busOwner)) {
+            delete(busConfig.getIdValue());
         }
     }
 
     @Override
     public BusConfig2 get(String id) throws BackplaneServerException {
-        byte[] bytes = Redis.getInstance().get(getKey(id));
-        if (bytes != null) {
-            return (BusConfig2) BpSerialUtils.deserialize(bytes);
-        } else {
-            return null;
-        }
+        return store.get(id);
     }
 
     @Override
     public List<BusConfig2> getAll() throws BackplaneServerException {
-        List<BusConfig2> buses = new ArrayList<BusConfig2>();
-        List<byte[]> bytesList = Redis.getInstance().lrange(getKey("list"), 0, -1);
-        for (byte[] bytes : bytesList) {
-            if (bytes != null) {
-                buses.add((BusConfig2) BpSerialUtils.deserialize(bytes));
-            }
-        }
-        return buses;
+        return store.getAll();
     }
 
     @Override
     public void persist(BusConfig2 obj) throws BackplaneServerException {
-        byte[] bytes = BpSerialUtils.serialize(obj);
-        Redis.getInstance().rpush(getKey("list"), bytes);
-        Redis.getInstance().set(getKey(obj.getIdValue()), bytes);
+        store.persist(obj);
     }
 
     @Override
     public void delete(final String id) throws BackplaneServerException {
-        Jedis jedis = null;
         try {
             logger.info("==== BEGIN BUS " + id + " DELETE ====");
-            jedis = Redis.getInstance().getWriteJedis();
-            byte[] bytes = jedis.get(getKey(id));
-            if (bytes != null) {
-                Transaction t = jedis.multi();
-                Response<Long> del1 = t.lrem(getKey("list"), 0, bytes);
-                Response<Long> del2 = t.del(getKey(id));
-                t.exec();
-
-                if (del1.get() == 0) {
-                    logger.warn("could not delete bus " + new String(getKey(id)) + " from list " + new String(getKey("list")));
-                }
-                if (del2.get() == 0) {
-                    logger.warn("could not delete bus key " + new String(getKey(id)));
-                }
+            if (store.delete(id) == null) {
+                logger.warn("could not delete bus key " + new String(getKey(id)));
             }
             // cleanup related grants
             grantDao.deleteByBuses(new ArrayList<String>() {{add(id);}});
@@ -121,8 +83,6 @@ public class RedisBusDAO implements BusDAO {
             logger.info("==== END BUS DELETE ====");
         } catch (TokenException e) {
             throw new BackplaneServerException("Error deleting buses: " + e.getMessage(), e);
-        } finally {
-            Redis.getInstance().releaseToPool(jedis);
         }
     }
 
@@ -130,5 +90,24 @@ public class RedisBusDAO implements BusDAO {
 
     private static final Logger logger = Logger.getLogger(RedisClientDAO.class);
 
+    private static final String OWNER_INDEX = "owner";
+
     private final GrantDAO grantDao;
+
+    private final RedisEntityStore<BusConfig2> store = new RedisEntityStore<BusConfig2>("v2_bus_", getKey("list"), true) {
+        @Override
+        protected BusConfig2 deserialize(byte[] bytes) {
+            return BpSerialUtils.deserialize(bytes);
+        }
+
+        @Override
+        protected Set<String> getIndexKeys(BusConfig2 bus) {
+            Set<String> indexKeys = new HashSet<String>();
+            String owner = bus.get(BusConfig2.Field.OWNER);
+            if (owner != null) {
+                indexKeys.add(getIndexKey(OWNER_INDEX, owner));
+            }
+            return indexKeys;
+        }
+    };
 }
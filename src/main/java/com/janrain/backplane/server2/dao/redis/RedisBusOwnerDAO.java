@@ -3,16 +3,12 @@ package com.janrain.backplane.server2.dao.redis;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.BpSerialUtils;
 import com.janrain.backplane.common.User;
-import com.janrain.backplane.redis.Redis;
+import com.janrain.backplane.redis.RedisEntityStore;
 import com.janrain.backplane.server2.BusOwner;
 import com.janrain.backplane.server2.dao.BusDAO;
 import com.janrain.backplane.server2.dao.BusOwnerDAO;
 import org.apache.log4j.Logger;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Response;
-import redis.clients.jedis.Transaction;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -30,66 +26,24 @@ public class RedisBusOwnerDAO implements BusOwnerDAO {
 
     @Override
     public BusOwner get(String id) throws BackplaneServerException {
-        byte[] bytes = Redis.getInstance().get(getKey(id));
-        if (bytes != null) {
-            return User.asDaoType(BpSerialUtils.<User>deserialize(bytes), BusOwner.class);
-        } else {
-            return null;
-        }
+        return store.get(id);
     }
 
     @Override
     public List<BusOwner> getAll() throws BackplaneServerException {
-        List<BusOwner> users = new ArrayList<BusOwner>();
-        List<byte[]> bytesList = Redis.getInstance().lrange(getKey("list"), 0, -1);
-        for (byte [] bytes : bytesList) {
-            if (bytes != null) {
-                users.add(User.asDaoType(BpSerialUtils.<User>deserialize(bytes), BusOwner.class));
-            }
-        }
-        return users;
-
+        return store.getAll();
     }
 
     @Override
     public void persist(BusOwner obj) throws BackplaneServerException {
-        Jedis jedis = null;
-
-        try {
-            jedis = Redis.getInstance().getWriteJedis();
-            byte[] bytes = BpSerialUtils.serialize(obj);
-            Transaction t = jedis.multi();
-
-            t.set(getKey(obj.getIdValue()), bytes);
-            t.rpush(getKey("list"), bytes);
-            t.exec();
-
-        } finally {
-            Redis.getInstance().releaseToPool(jedis);
-        }
+        store.persist(obj);
     }
 
     @Override
     public void delete(String id) throws BackplaneServerException {
-        Jedis jedis = null;
-
         try {
             logger.info("=== BEGIN BUS OWNER " + id + " DELETE ===");
-            jedis = Redis.getInstance().getWriteJedis();
-            byte[] bytes = jedis.get(getKey(id));
-            if (bytes != null) {
-                Transaction t= jedis.multi();
-                Response<Long> del1 = t.del(getKey(id));
-                Response<Long> del2 = t.lrem(getKey("list"), 0, bytes);
-                t.exec();
-
-                if (del1.get() == 0) {
-                    logger.warn("failed to remove " + new String(getKey(id)));
-                }
-                if (del2.get() == 0) {
-                    logger.warn("failed to remove " + new String(getKey(id)) + " from list " + new String(getKey("list")));
-                }
-            } else {
+            if (store.delete(id) == null) {
                 logger.warn("could not locate value for key " + new String(getKey(id)));
             }
 
@@ -100,8 +54,6 @@ public class RedisBusOwnerDAO implements BusOwnerDAO {
         } catch (Exception e) {
             logger.error("An exception occurred during an atomic operation.  Corruption may have occurred while removing bus owner: " + id);
             throw new BackplaneServerException(e.getMessage());
-        } finally {
-            Redis.getInstance().releaseToPool(jedis);
         }
     }
 
@@ -111,4 +63,11 @@ public class RedisBusOwnerDAO implements BusOwnerDAO {
 
     private final BusDAO busDao;
 
+    private final RedisEntityStore<BusOwner> store = new RedisEntityStore<BusOwner>("v2_bus_owner_", getKey("list"), true) {
+        @Override
+        protected BusOwner deserialize(byte[] bytes) {
+            return User.asDaoType(BpSerialUtils.<User>deserialize(bytes), BusOwner.class);
+        }
+    };
+
 }
@@ -3,56 +3,72 @@ package com.janrain.backplane.server2.dao.redis;
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.BpSerialUtils;
 import com.janrain.backplane.redis.Redis;
+import com.janrain.backplane.redis.RedisEntityStore;
+import com.janrain.backplane.redis.RedisSubscriber;
 import com.janrain.backplane.server2.BackplaneMessage;
+import com.janrain.backplane.server2.ClientGrants;
 import com.janrain.backplane.server2.Grant;
 import com.janrain.backplane.server2.Scope;
+import com.janrain.backplane.server2.dao.ConfigLRUCache;
 import com.janrain.backplane.server2.dao.GrantDAO;
 import com.janrain.backplane.server2.dao.TokenDAO;
 import com.janrain.backplane.server2.oauth2.TokenException;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Transaction;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**
+ * Per-client grant views are cached on each node, and invalidated on all nodes
+ * through the CLIENT_GRANTS_INVALIDATIONS_CHANNEL pub/sub channel when the client's grants change.
+ *
  * @author Tom Raney
  */
 public class RedisGrantDAO implements GrantDAO {
 
+    public static final String CLIENT_GRANTS_INVALIDATIONS_CHANNEL = "v2_client_grants_invalidations";
+
     public RedisGrantDAO(TokenDAO tokenDao) {
         this.tokenDAO = tokenDao;
+        RedisSubscriber.getInstance().addListener(CLIENT_GRANTS_INVALIDATIONS_CHANNEL, new RedisSubscriber.Listener() {
+            @Override
+            public void onMessage(String channel, String clientId) {
+                clientGrantsCache.invalidate(clientId);
+            }
+        });
     }
 
     @Override
     public List<Grant> getByClientId(String clientId) throws BackplaneServerException {
-        List<Grant> grants = getAll();
-        List<Grant> filtered = new ArrayList<Grant>();
-        for (Grant grant: grants) {
-            if (clientId.equals(grant.get(Grant.GrantField.ISSUED_TO_CLIENT_ID)) &&
-                    (grant.getState().isActive())) {
-                filtered.add(grant);
+        return getActiveByClientId(clientId, false);
+    }
+
+    /**
+     * Views are loaded from the primary server, so that a lagging replica can't undo an invalidation.
+     */
+    @Override
+    public ClientGrants getClientGrants(String clientId) throws BackplaneServerException {
+        return clientGrantsCache.get(clientId, new ConfigLRUCache.Loader<ClientGrants>() {
+            @Override
+            public ClientGrants load(String clientId) {
+                return new ClientGrants(getActiveByClientId(clientId, true));
             }
-        }
-        return filtered;
+        });
     }
 
     @Override
     public void deleteByBuses(@NotNull List<String> busesToDelete) throws BackplaneServerException, TokenException {
 
         Scope deleteBusesScope = new Scope(Scope.getEncodedScopesAsString(BackplaneMessage.Field.BUS, busesToDelete));
-            for(Grant grant : getAll()) {
-                Set<String> grantBuses = grant.getAuthorizedScope().getScopeFieldValues(BackplaneMessage.Field.BUS);
-                if (grantBuses == null) continue;
-                for(String bus : grantBuses) {
-                    if (busesToDelete.contains(bus)) {
-                        revokeBuses(grant, deleteBusesScope);
-                    }
+        Set<String> revoked = new HashSet<String>();
+        for (String bus : busesToDelete) {
+            for (Grant grant : store.getByIndex(BUS_INDEX, bus)) {
+                if (revoked.add(grant.getIdValue())) {
+                    revokeBuses(grant, deleteBusesScope);
                 }
             }
+        }
     }
 
     @Override
@@ -67,81 +83,107 @@ public class RedisGrantDAO implements GrantDAO {
 
     @Override
     public Grant get(String id) throws BackplaneServerException {
-        byte[] bytes = Redis.getInstance().get(getKey(id));
-        if (bytes != null) {
-            return (Grant) BpSerialUtils.deserialize(bytes);
-        } else {
-            return null;
-        }
+        return store.get(id);
     }
 
     @Override
     public List<Grant> getAll() throws BackplaneServerException {
-        List<byte[]> listOfBytes = Redis.getInstance().lrange(getKey("list"), 0, -1);
-        List<Grant> grants = new ArrayList<Grant>();
-        for (byte[] bytes : listOfBytes) {
-            if (bytes != null) {
-                grants.add((Grant) BpSerialUtils.deserialize(bytes));
-            }
-        }
-        return grants;
+        return store.getAll();
     }
 
     @Override
     public void persist(Grant obj) throws BackplaneServerException {
-        byte[] bytes = BpSerialUtils.serialize(obj);
         logger.info("adding grant " + obj.getIdValue() + " to redis");
-        // todo: one hash object instead of top level entries + a separate list?
-        Redis.getInstance().rpush(getKey("list"), bytes);
-        Redis.getInstance().set(getKey(obj.getIdValue()), bytes);
+        store.persist(obj);
+        clientGrantsChanged(obj);
     }
 
     @Override
     public void update(Grant existing, Grant updated) throws BackplaneServerException, TokenException {
-        Jedis jedis = null;
-        try {
-            tokenDAO.revokeTokenByGrant(existing.getIdValue());
-            jedis = Redis.getInstance().getWriteJedis();
-            byte[] newBytes = BpSerialUtils.serialize(updated);
-            byte[] oldBytes = jedis.get(getKey(existing.getIdValue()));
-            Transaction t = jedis.multi();
-            t.lrem(getKey("list"), 0, oldBytes);
-            t.rpush(getKey("list"), newBytes);
-            t.set(getKey(updated.getIdValue()), newBytes);
-            t.exec();
-            logger.info("Updated grant (and revoked tokens): " + updated.getIdValue());
-        } finally {
-            Redis.getInstance().releaseToPool(jedis);
+        tokenDAO.revokeTokenByGrant(existing.getIdValue());
+        store.persist(updated);
+        if (! existing.getIdValue().equals(updated.getIdValue())) {
+            store.delete(existing.getIdValue());
         }
+        clientGrantsChanged(existing);
+        clientGrantsChanged(updated);
+        logger.info("Updated grant (and revoked tokens): " + updated.getIdValue());
     }
 
     @Override
     public void delete(String id) throws BackplaneServerException {
-        Jedis jedis = null;
-        try {
-            jedis = Redis.getInstance().getWriteJedis();
-            byte[] bytes = jedis.get(getKey(id));
-            if (bytes != null) {
-                if (jedis.lrem(getKey("list"), 0, bytes) == 0) {
-                    logger.warn("failed to remove grant " + id + " from list " + new String(getKey("list")));
-                }
-                jedis.del(getKey(id));
-            }
-            tokenDAO.revokeTokenByGrant(id);
-            logger.info("deleted grant " + id);
-        } finally {
-            Redis.getInstance().releaseToPool(jedis);
-        }
+        clientGrantsChanged(store.delete(id));
+        tokenDAO.revokeTokenByGrant(id);
+        logger.info("deleted grant " + id);
     }
 
     // PRIVATE
 
     private static final Logger logger = Logger.getLogger(RedisGrantDAO.class);
 
+    private static final String CLIENT_INDEX = "client";
+    private static final String BUS_INDEX = "bus";
+
+    private static final long CLIENT_GRANTS_CACHE_MAX_BYTES = 10 * 1024 * 1024;
+    /** upper bound for serving a view that missed an invalidation */
+    private static final long CLIENT_GRANTS_MAX_AGE_MILLIS = 60000l;
+
     private final TokenDAO tokenDAO;
 
-    private static byte[] getKey(String id) {
-        return ("v2_grant_" + id).getBytes();
+    private final ConfigLRUCache<ClientGrants> clientGrantsCache = new ConfigLRUCache<ClientGrants>(CLIENT_GRANTS_CACHE_MAX_BYTES, CLIENT_GRANTS_MAX_AGE_MILLIS) {
+        @Override
+        protected long sizeBytes(ClientGrants clientGrants) {
+            return clientGrants.sizeBytes();
+        }
+    };
+
+    private final RedisEntityStore<Grant> store = new RedisEntityStore<Grant>("v2_grant_", "v2_grant_list".getBytes()) {
+        @Override
+        protected Grant deserialize(byte[] bytes) {
+            return BpSerialUtils.deserialize(bytes);
+        }
+
+        @Override
+        protected Set<String> getIndexKeys(Grant grant) {
+            Set<String> indexKeys = new HashSet<String>();
+            String clientId = grant.get(Grant.GrantField.ISSUED_TO_CLIENT_ID);
+            if (clientId != null) {
+                indexKeys.add(getIndexKey(CLIENT_INDEX, clientId));
+            }
+            Set<String> buses = grant.getAuthorizedScope().getScopeFieldValues(BackplaneMessage.Field.BUS);
+            if (buses != null) {
+                for (String bus : buses) {
+                    indexKeys.add(getIndexKey(BUS_INDEX, bus));
+                }
+            }
+            return indexKeys;
+        }
+    };
+
+    private List<Grant> getActiveByClientId(String clientId, boolean fromPrimary) {
+        List<Grant> filtered = new ArrayList<Grant>();
+        for (Grant grant : store.getByIndex(CLIENT_INDEX, clientId, fromPrimary)) {
+            if (grant.getState().isActive()) {
+                filtered.add(grant);
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * Invalidates the view of the grant's client, on this node right away and on the others through pub/sub.
+     */
+    private void clientGrantsChanged(Grant grant) {
+        String clientId = grant == null ? null : grant.get(Grant.GrantField.ISSUED_TO_CLIENT_ID);
+        if (clientId == null) return;
+        clientGrantsCache.invalidate(clientId);
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getWriteJedis();
+            jedis.publish(CLIENT_GRANTS_INVALIDATIONS_CHANNEL, clientId);
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
+        }
     }
 
     private boolean revokeBuses(Grant grant, Scope busesToRevoke) throws BackplaneServerException {
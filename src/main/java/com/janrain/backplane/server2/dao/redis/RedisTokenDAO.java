@@ -2,46 +2,82 @@ package com.janrain.backplane.server2.dao.redis;
 
 import com.janrain.backplane.common.BackplaneServerException;
 import com.janrain.backplane.common.BpSerialUtils;
+import com.janrain.backplane.config.BackplaneSystemProps;
+import com.janrain.backplane.config.BpServerConfig;
+import com.janrain.backplane.dao.ServerDAOs;
 import com.janrain.backplane.redis.Redis;
+import com.janrain.backplane.redis.RedisScript;
+import com.janrain.backplane.redis.RedisSubscriber;
 import com.janrain.backplane.server2.Token;
+import com.janrain.backplane.server2.dao.ConfigLRUCache;
 import com.janrain.backplane.server2.dao.TokenDAO;
 import com.janrain.commons.message.MessageException;
+import org.apache.commons.lang.NotImplementedException;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
+ * Tokens are read through a node-local cache, which also remembers (briefly) unknown token IDs.
+ * Deleted tokens are invalidated on all nodes through the TOKEN_INVALIDATIONS_CHANNEL pub/sub channel.
+ *
+ * Tokens are only stored under their own keys, expiring through redis TTLs. Tokens with backing grants
+ * are also indexed by grant, so revoking a grant's tokens only reads that grant's index.
+ *
  * @author Tom Raney
  */
 public class RedisTokenDAO implements TokenDAO {
 
+    public static final String TOKEN_INVALIDATIONS_CHANNEL = "v2_token_invalidations";
+
     public static byte[] getKey(String id) {
-        return ("v2_token_" + id).getBytes();
+        return (TOKEN_PREFIX + id).getBytes();
+    }
+
+    public RedisTokenDAO() {
+        tokenCache = new ConfigLRUCache<Token>(getTokenCacheMaxBytes(), TOKEN_CACHE_MAX_AGE_MILLIS);
+        RedisSubscriber.getInstance().addListener(TOKEN_INVALIDATIONS_CHANNEL, new RedisSubscriber.Listener() {
+            @Override
+            public void onMessage(String channel, String tokenId) {
+                invalidate(tokenId);
+            }
+        });
     }
 
     @Override
     public Token get(String id) throws BackplaneServerException {
-        byte[] bytes = Redis.getInstance().get(getKey(id));
-        if (bytes != null) {
-            return (Token) BpSerialUtils.deserialize(bytes);
-        } else {
-            return null;
+        ConfigLRUCache.Entry<Token> cached = tokenCache.getEntry(id);
+        if (cached != null) {
+            Token token = cached.getItem();
+            if (token == null) {
+                if (System.currentTimeMillis() - cached.getCachedAt() < NEGATIVE_CACHE_MILLIS) {
+                    return null;
+                }
+            } else if (! token.isExpired()) {
+                return token;
+            }
+            // stale negative entry or expired token, let redis have the final word
+            tokenCache.delete(id);
         }
+
+        byte[] bytes = Redis.getInstance().get(getKey(id));
+        Token token = bytes == null ? null : (Token) BpSerialUtils.deserialize(bytes);
+        // don't overwrite an invalidation received while reading (possibly stale data) from redis
+        tokenCache.addIfAbsent(id, token);
+        return token;
     }
 
+    /**
+     * Not supported: tokens are not enumerable, they are only kept (and indexed by grant) until they expire.
+     */
     @Override
     public List<Token> getAll() throws BackplaneServerException {
-        List<Token> tokens = new ArrayList<Token>();
-        List<byte[]> byteList = Redis.getInstance().lrange(getKey("list"), 0, -1);
-        for (byte[] bytes : byteList) {
-            if (bytes != null) {
-                tokens.add((Token) BpSerialUtils.deserialize(bytes));
-            }
-        }
-        return tokens;
+        throw new NotImplementedException();
     }
 
     @Override
@@ -49,13 +85,8 @@ public class RedisTokenDAO implements TokenDAO {
         Jedis jedis = null;
         try {
             jedis = Redis.getInstance().getWriteJedis();
-            byte[] bytes = BpSerialUtils.serialize(token);
-            jedis.rpush(getKey("list"), bytes);
-            jedis.set(getKey(token.getIdValue()), bytes);
-            // set a TTL
-            if (token.getExpirationDate() != null) {
-                jedis.expireAt(getKey(token.getIdValue()), token.getExpirationDate().getTime() / 1000 +1);
-            }
+            persist(jedis, token, BpSerialUtils.serialize(token));
+            tokenCache.add(token);
         } finally {
             Redis.getInstance().releaseToPool(jedis);
         }
@@ -69,25 +100,55 @@ public class RedisTokenDAO implements TokenDAO {
             byte[] bytes = jedis.get(getKey(tokenId));
             if (bytes != null) {
                 logger.info("removing token " + tokenId);
-                jedis.lrem(getKey("list"), 0, bytes);
-                jedis.del(getKey(tokenId));
+                Token token = BpSerialUtils.deserialize(bytes);
+                Transaction t = jedis.multi();
+                t.del(getKey(tokenId));
+                for (String grantId : token.getBackingGrants()) {
+                    t.srem(getGrantIndexKey(grantId), tokenId);
+                }
+                t.exec();
+                invalidate(tokenId);
+                jedis.publish(TOKEN_INVALIDATIONS_CHANNEL, tokenId);
             }
         } finally {
             Redis.getInstance().releaseToPool(jedis);
         }
     }
 
+    /**
+     * Reads only the grant's index; IDs of tokens that expired since they were indexed are removed from it.
+     */
     @Override
     public List<Token> retrieveTokensByGrant(String grantId) throws BackplaneServerException {
-        List<Token> tokens = getAll();
-        List<Token> filtered = new ArrayList<Token>();
-        for (Token token: tokens) {
-            if (token.getBackingGrants().contains(grantId)) {
-                logger.info("found");
-                filtered.add(token);
+        List<Token> tokens = new ArrayList<Token>();
+        List<String> expired = new ArrayList<String>();
+        String indexKey = getGrantIndexKey(grantId);
+        Jedis jedis = null;
+        try {
+            jedis = Redis.getInstance().getWriteJedis();
+            List<String> ids = new ArrayList<String>(jedis.smembers(indexKey));
+            if (ids.isEmpty()) return tokens;
+            byte[][] keys = new byte[ids.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = getKey(ids.get(i));
+            }
+            List<byte[]> values = jedis.mget(keys);
+            for (int i = 0; i < ids.size(); i++) {
+                byte[] bytes = values.get(i);
+                if (bytes != null) {
+                    tokens.add((Token) BpSerialUtils.deserialize(bytes));
+                } else {
+                    expired.add(ids.get(i));
+                }
+            }
+            if (! expired.isEmpty()) {
+                // token IDs are never reused, a missing token can't reappear
+                jedis.srem(indexKey, expired.toArray(new String[expired.size()]));
             }
+            return tokens;
+        } finally {
+            Redis.getInstance().releaseToPool(jedis);
         }
-        return filtered;
     }
 
     @Override
@@ -102,30 +163,58 @@ public class RedisTokenDAO implements TokenDAO {
         }
     }
 
+    /**
+     * Expired tokens are removed by their redis TTL, and from grant indexes when the grants' tokens are read.
+     * This only migrates, in bounded chunks per run, the storage used by previous versions:
+     * the list of all tokens (only tokens with backing grants that still exist are indexed) and the set of all token IDs.
+     *
+     * The list is indexed idempotently, starting over whenever its length changed since the last complete pass,
+     * and is left alone (for nodes still running the previous version) until the BP_LEGACY_LISTS_REMOVE system
+     * property is set to true; then it is removed as it is indexed, along with the set of all token IDs.
+     */
     @Override
-    public void deleteExpiredTokens() throws BackplaneServerException {
-        // todo: add token cache?
+    public synchronized void deleteExpiredTokens() throws BackplaneServerException {
         Jedis jedis = null;
-
         try {
             jedis = Redis.getInstance().getWriteJedis();
-            logger.info("Backplane token cleanup task started.");
-
-            List<Token> tokens = getAll();
-            if (tokens != null) {
-                for (Token token : tokens) {
-                    if (Redis.getInstance().get(getKey(token.getIdValue())) == null) {
-                        // remove from list
-                        jedis.lrem(getKey("list"), 0, BpSerialUtils.serialize(token));
-                        logger.info("removed expired token " + token.getIdValue());
-                    }
+            int listed = 0, indexed = 0, unlisted = 0;
+            if (REMOVE_LEGACY_LISTS) {
+                for (int chunks = 0; chunks < MAX_CHUNKS_PER_RUN; chunks++) {
+                    Transaction t = jedis.multi();
+                    Response<List<byte[]>> chunkResponse = t.lrange(getKey("list"), 0, CHUNK_SIZE - 1);
+                    t.ltrim(getKey("list"), CHUNK_SIZE, -1);
+                    t.exec();
+                    List<byte[]> chunk = chunkResponse.get();
+                    listed += chunk.size();
+                    indexed += indexLegacyTokens(jedis, chunk);
+                    if (chunk.size() < CHUNK_SIZE) break;
+                }
+                for (int chunks = 0; chunks < MAX_CHUNKS_PER_RUN; chunks++) {
+                    int removed = drainLegacyAllTokens(jedis);
+                    unlisted += removed;
+                    if (removed < CHUNK_SIZE) break;
                 }
+            } else {
+                long length = jedis.llen(getKey("list"));
+                if (legacyListLength < 0 || (legacyListOffset >= length && length != legacyListLength)) {
+                    legacyListOffset = 0;
+                    legacyListLength = length;
+                }
+                for (int chunks = 0; chunks < MAX_CHUNKS_PER_RUN && legacyListOffset < length; chunks++) {
+                    List<byte[]> chunk = jedis.lrange(getKey("list"), legacyListOffset, legacyListOffset + CHUNK_SIZE - 1);
+                    legacyListOffset = chunk.size() < CHUNK_SIZE ? length : legacyListOffset + CHUNK_SIZE;
+                    listed += chunk.size();
+                    indexed += indexLegacyTokens(jedis, chunk);
+                }
+            }
+            if (listed > 0 || unlisted > 0) {
+                logger.info("migrated " + listed + " tokens from legacy list (" + indexed + " indexed by grant), " +
+                        unlisted + " from legacy token ID set");
             }
         } catch (Exception e) {
             // catch-all, else cleanup thread stops
             logger.error("Backplane token cleanup task error: " + e.getMessage(), e);
         } finally {
-            logger.info("Backplane token cleanup task finished.");
             Redis.getInstance().releaseToPool(jedis);
         }
     }
@@ -139,6 +228,136 @@ public class RedisTokenDAO implements TokenDAO {
 
     private static final Logger logger = Logger.getLogger(RedisTokenDAO.class);
 
+    /** upper bound for serving a token deleted while this node missed its invalidation */
+    private static final long TOKEN_CACHE_MAX_AGE_MILLIS = 60000l;
+    /** short, so that a token that is not replicated yet doesn't stay unknown for long */
+    private static final long NEGATIVE_CACHE_MILLIS = 2000l;
+
+    private static final String TOKEN_PREFIX = "v2_token_";
+
+    /** set of all token IDs, kept by previous versions */
+    private static final String LEGACY_ALL_TOKENS_KEY = "idx_" + TOKEN_PREFIX + "all";
+
+    private static final int CHUNK_SIZE = 500;
+    private static final int MAX_CHUNKS_PER_RUN = 20;
+
+    /**
+     * Stores a token and adds it to the index of each of its backing grants.
+     * A grant index expires with its last token: its expiration is only ever extended, and removed for a token
+     * that never expires (refresh tokens issued by previous versions); redis deletes it when its last token is removed.
+     *
+     * KEYS: token key, then the index key of each backing grant
+     * ARGV: serialized token, or "" to only index an already stored token if it still exists,
+     *       token ID, expiration as unix time in seconds ("" if the token never expires), current unix time
+     */
+    private static final RedisScript PERSIST_TOKEN_SCRIPT = new RedisScript(
+            "if ARGV[1] ~= '' then\n" +
+            "  redis.call('SET', KEYS[1], ARGV[1])\n" +
+            "  if ARGV[3] ~= '' then redis.call('EXPIREAT', KEYS[1], ARGV[3]) end\n" +
+            "elseif redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+            "  return 0\n" +
+            "end\n" +
+            "for i = 2, #KEYS do\n" +
+            "  local existed, ttl = redis.call('EXISTS', KEYS[i]), redis.call('TTL', KEYS[i])\n" +
+            "  redis.call('SADD', KEYS[i], ARGV[2])\n" +
+            "  if ARGV[3] == '' then\n" +
+            "    redis.call('PERSIST', KEYS[i])\n" +
+            "  elseif existed == 0 or (ttl >= 0 and ttl < tonumber(ARGV[3]) - tonumber(ARGV[4])) then\n" +
+            "    redis.call('EXPIREAT', KEYS[i], ARGV[3])\n" +
+            "  end\n" +
+            "end\n" +
+            "return 1\n");
+
+    private static final boolean REMOVE_LEGACY_LISTS = Boolean.parseBoolean(System.getProperty(BackplaneSystemProps.BP_LEGACY_LISTS_REMOVE));
+
+    private final ConfigLRUCache<Token> tokenCache;
+
+    /** next legacy list entry to index, and the list's length when the current indexing pass started (-1 before the first) */
+    private long legacyListOffset = 0;
+    private long legacyListLength = -1;
+
+    private static String getGrantIndexKey(String grantId) {
+        return "idx_" + TOKEN_PREFIX + "grant_" + grantId;
+    }
+
+    /**
+     * @param bytes the serialized token, or null to only index it if it is still stored
+     */
+    private static void persist(Jedis jedis, Token token, byte[] bytes) {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        keys.add(getKey(token.getIdValue()));
+        for (String grantId : token.getBackingGrants()) {
+            keys.add(getGrantIndexKey(grantId).getBytes());
+        }
+        Date expires = token.getExpirationDate();
+        List<byte[]> args = new ArrayList<byte[]>();
+        args.add(bytes == null ? new byte[0] : bytes);
+        args.add(token.getIdValue().getBytes());
+        args.add((expires == null ? "" : Long.toString(expires.getTime() / 1000 + 1)).getBytes());
+        args.add(Long.toString(System.currentTimeMillis() / 1000).getBytes());
+        PERSIST_TOKEN_SCRIPT.eval(jedis, keys, args);
+    }
+
+    /**
+     * Pops a chunk of members off the legacy set of all token IDs; SPOP from a client, rather than
+     * SRANDMEMBER + SREM in a script, which redis before 5.0 rejects as a write after a non deterministic command.
+     *
+     * @return the number of members removed
+     */
+    private static int drainLegacyAllTokens(Jedis jedis) {
+        Pipeline p = jedis.pipelined();
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            p.spop(LEGACY_ALL_TOKENS_KEY);
+        }
+        int removed = 0;
+        for (Object member : p.syncAndReturnAll()) {
+            if (member != null) removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of tokens from the legacy list chunk that were indexed by grant
+     */
+    private static int indexLegacyTokens(Jedis jedis, List<byte[]> chunk) {
+        int indexed = 0;
+        for (byte[] bytes : chunk) {
+            Token token;
+            try {
+                token = BpSerialUtils.deserialize(bytes);
+            } catch (Exception e) {
+                logger.warn("skipping invalid entry in legacy token list: " + e.getMessage());
+                continue;
+            }
+            // anonymous tokens need no index, they are never revoked by grant
+            if (token.getBackingGrants().isEmpty() || token.isExpired()) continue;
+            persist(jedis, token, null);
+            indexed++;
+        }
+        return indexed;
+    }
+
+    private static long getTokenCacheMaxBytes() {
+        BpServerConfig config = null;
+        try {
+            config = ServerDAOs.getConfigDAO().get(BackplaneSystemProps.BPSERVER_CONFIG_KEY);
+        } catch (Exception e) {
+            logger.warn("error reading server config, using default token cache size: " + e.getMessage());
+        }
+        if (config == null) {
+            config = new BpServerConfig();
+        }
+        return config.getTokenCacheMaxMB() * 1024 * 1024;
+    }
+
+    /**
+     * Remembers the token as deleted, rather than just dropping it from the cache,
+     * so that a concurrent read from a lagging replica doesn't cache it again.
+     */
+    private void invalidate(String tokenId) {
+        tokenCache.add(tokenId, null);
+    }
+
     private String getChannelBindingKey(@NotNull String channel) {
         // todo: key prefixes should be centralized to avoid conflicts
         return "v2_channel_bus_" + channel;
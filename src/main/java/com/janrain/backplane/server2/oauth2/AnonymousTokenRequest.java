@@ -104,7 +104,8 @@ public class AnonymousTokenRequest implements TokenRequest {
 
     private static String generateRefreshToken(GrantType refreshType, Scope scope) throws MessageException, BackplaneServerException {
         if (refreshType == null || ! refreshType.isRefresh()) return null;
-        Token refreshToken = new Token.Builder(refreshType, scope.toString()).buildToken();
+        Date expires = new Date(System.currentTimeMillis() + refreshType.getTokenExpiresSecondsDefault() * 1000L);
+        Token refreshToken = new Token.Builder(refreshType, scope.toString()).expires(expires).buildToken();
         BP2DAOs.getTokenDao().persist(refreshToken);
         return refreshToken.getIdValue();
     }
@@ -158,7 +158,9 @@ public class AuthenticatedTokenRequest implements TokenRequest {
 
     private String generateRefreshToken(GrantType refreshType, Token accessToken) throws MessageException, BackplaneServerException {
         if (! refreshType.isRefresh()) return null;
+        Date expires = new Date(System.currentTimeMillis() + refreshType.getTokenExpiresSecondsDefault() * 1000L);
         Token refreshToken = new Token.Builder(refreshType, accessToken.getScopeString())
+                .expires(expires)
                 .issuedToClient(authenticatedClientId)
                 .clientSourceUrl(authenticatedClientSourceUrl)
                 .grants(accessToken.getBackingGrants())
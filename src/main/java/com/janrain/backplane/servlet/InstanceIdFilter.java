@@ -46,10 +46,10 @@ public class InstanceIdFilter implements Filter {
     @Override
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
         HttpServletResponse response = (HttpServletResponse) res;
-        response.addHeader(SSO_ID_HEADER, bpConfig.getInstanceId() + "-" + bpConfig.getBuildVersion());
+        response.setHeader(SSO_ID_HEADER, bpConfig.getInstanceId() + "-" + bpConfig.getBuildVersion());
 
         //add EC2 instance id
-        response.addHeader("EC2-instance-id", BackplaneConfig.getEC2InstanceId());
+        response.setHeader("EC2-instance-id", BackplaneConfig.getEC2InstanceId());
 
         // pass the request/response on
         chain.doFilter(req, response);
@@ -55,6 +55,11 @@ public class JsonpCallbackFilter implements Filter {
 
             chain.doFilter(request, wrapper);
 
+            if (ServletUtil.isSuspended(request)) {
+                // response will be written when the request is resumed and dispatched again
+                return;
+            }
+
             stream.write((callbackName + "(").getBytes());
             stream.write(wrapper.getData());
             stream.write(");".getBytes());
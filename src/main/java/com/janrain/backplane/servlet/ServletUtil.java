@@ -16,6 +16,11 @@
 
 package com.janrain.backplane.servlet;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.jetbrains.annotations.Nullable;
+
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -56,4 +61,23 @@ public class ServletUtil {
         }
     }
 
+    /**
+     * @return the request's continuation, or null if the container doesn't support suspending requests
+     */
+    public static @Nullable Continuation getContinuation(ServletRequest request) {
+        try {
+            return ContinuationSupport.getContinuation(request);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the request was suspended during the current dispatch and will be resumed (re-dispatched) later
+     */
+    public static boolean isSuspended(ServletRequest request) {
+        Continuation continuation = getContinuation(request);
+        return continuation != null && continuation.isSuspended();
+    }
+
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.common;
+
+import com.janrain.backplane.config.Admin;
+import com.janrain.backplane.config.BpServerConfig;
+import com.janrain.backplane.server1.BP1User;
+import com.janrain.backplane.server1.BusConfig1;
+import com.janrain.backplane.server2.AuthSession;
+import com.janrain.backplane.server2.BusConfig2;
+import com.janrain.backplane.server2.BusOwner;
+import com.janrain.backplane.server2.Channel;
+import com.janrain.backplane.server2.Client;
+import com.janrain.backplane.server2.Grant;
+import com.janrain.backplane.server2.Token;
+import com.janrain.backplane.server2.oauth2.AuthorizationDecisionKey;
+import com.janrain.backplane.server2.oauth2.AuthorizationRequest;
+import com.janrain.commons.message.MessageField;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class and field codes are persisted, changing any of them makes stored values unreadable.
+ */
+public class ExternalizableCoreCodecTest {
+
+    @Test
+    public void testClassCodes() {
+        assertEquals(1, ExternalizableCoreCodec.getClassCode(BpServerConfig.class));
+        assertEquals(2, ExternalizableCoreCodec.getClassCode(Admin.class));
+        assertEquals(3, ExternalizableCoreCodec.getClassCode(User.class));
+        assertEquals(4, ExternalizableCoreCodec.getClassCode(BP1User.class));
+        assertEquals(5, ExternalizableCoreCodec.getClassCode(BusConfig1.class));
+        assertEquals(6, ExternalizableCoreCodec.getClassCode(com.janrain.backplane.server1.BackplaneMessage.class));
+        assertEquals(7, ExternalizableCoreCodec.getClassCode(BusOwner.class));
+        assertEquals(8, ExternalizableCoreCodec.getClassCode(Client.class));
+        assertEquals(9, ExternalizableCoreCodec.getClassCode(BusConfig2.class));
+        assertEquals(10, ExternalizableCoreCodec.getClassCode(Channel.class));
+        assertEquals(11, ExternalizableCoreCodec.getClassCode(Token.class));
+        assertEquals(12, ExternalizableCoreCodec.getClassCode(Grant.class));
+        assertEquals(13, ExternalizableCoreCodec.getClassCode(AuthSession.class));
+        assertEquals(14, ExternalizableCoreCodec.getClassCode(com.janrain.backplane.server2.BackplaneMessage.class));
+        assertEquals(15, ExternalizableCoreCodec.getClassCode(AuthorizationRequest.class));
+        assertEquals(16, ExternalizableCoreCodec.getClassCode(AuthorizationDecisionKey.class));
+    }
+
+    @Test
+    public void testFieldCodes() {
+        assertFieldCodes(BpServerConfig.class,
+                BpServerConfig.Field.ID, 1,
+                BpServerConfig.Field.DEBUG_MODE, 2,
+                BpServerConfig.Field.CONFIG_CACHE_AGE_SECONDS, 3,
+                BpServerConfig.Field.CLEANUP_INTERVAL_MINUTES, 4,
+                BpServerConfig.Field.DEFAULT_MESSAGES_MAX, 5,
+                BpServerConfig.Field.TOKEN_CACHE_MAX_MB, 6);
+
+        for (Class<? extends User> userType : new Class[] {User.class, Admin.class, BP1User.class, BusOwner.class}) {
+            assertFieldCodes(userType,
+                    User.Field.USER, 1,
+                    User.Field.PWDHASH, 2);
+        }
+
+        assertFieldCodes(Client.class,
+                User.Field.USER, 1,
+                User.Field.PWDHASH, 2,
+                Client.ClientField.SOURCE_URL, 257,
+                Client.ClientField.REDIRECT_URI, 258);
+
+        assertFieldCodes(BusConfig1.class,
+                BusConfig1.Field.BUS_NAME, 1,
+                BusConfig1.Field.RETENTION_TIME_SECONDS, 2,
+                BusConfig1.Field.RETENTION_STICKY_TIME_SECONDS, 3);
+
+        assertFieldCodes(com.janrain.backplane.server1.BackplaneMessage.class,
+                com.janrain.backplane.server1.BackplaneMessage.Field.ID, 1,
+                com.janrain.backplane.server1.BackplaneMessage.Field.CHANNEL_NAME, 2,
+                com.janrain.backplane.server1.BackplaneMessage.Field.BUS, 3,
+                com.janrain.backplane.server1.BackplaneMessage.Field.STICKY, 4,
+                com.janrain.backplane.server1.BackplaneMessage.Field.EXPIRE, 5,
+                com.janrain.backplane.server1.BackplaneMessage.Field.SOURCE, 6,
+                com.janrain.backplane.server1.BackplaneMessage.Field.TYPE, 7,
+                com.janrain.backplane.server1.BackplaneMessage.Field.PAYLOAD, 8);
+
+        assertFieldCodes(BusConfig2.class,
+                BusConfig2.Field.BUS_NAME, 1,
+                BusConfig2.Field.OWNER, 2,
+                BusConfig2.Field.RETENTION_TIME_SECONDS, 3,
+                BusConfig2.Field.RETENTION_STICKY_TIME_SECONDS, 4);
+
+        assertFieldCodes(Channel.class,
+                Channel.ChannelField.ID, 1,
+                Channel.ChannelField.BUS, 2,
+                Channel.ChannelField.EXPIRE_SECONDS, 3,
+                Channel.ChannelField.MESSAGE_EXPIRE_DEFAULT_SECONDS, 4,
+                Channel.ChannelField.MESSAGE_EXPIRE_MAX_SECONDS, 5);
+
+        assertFieldCodes(Token.class,
+                Token.TokenField.ID, 1,
+                Token.TokenField.TYPE, 2,
+                Token.TokenField.EXPIRES, 3,
+                Token.TokenField.SCOPE, 4,
+                Token.TokenField.ISSUED_TO_CLIENT_ID, 5,
+                Token.TokenField.CLIENT_SOURCE_URL, 6,
+                Token.TokenField.BACKING_GRANTS, 7);
+
+        assertFieldCodes(Grant.class,
+                Grant.GrantField.ID, 1,
+                Grant.GrantField.TYPE, 2,
+                Grant.GrantField.ISSUED_BY_USER_ID, 3,
+                Grant.GrantField.ISSUED_TO_CLIENT_ID, 4,
+                Grant.GrantField.AUTHORIZED_SCOPES, 5,
+                Grant.GrantField.STATE, 6,
+                Grant.GrantField.TIME_UPDATE, 7,
+                Grant.GrantField.TIME_EXPIRE, 8);
+
+        assertFieldCodes(AuthSession.class,
+                AuthSession.Field.COOKIE, 1,
+                AuthSession.Field.AUTH_USER, 2,
+                AuthSession.Field.EXPIRES, 3);
+
+        assertFieldCodes(com.janrain.backplane.server2.BackplaneMessage.class,
+                com.janrain.backplane.server2.BackplaneMessage.Field.ID, 1,
+                com.janrain.backplane.server2.BackplaneMessage.Field.CHANNEL, 2,
+                com.janrain.backplane.server2.BackplaneMessage.Field.BUS, 3,
+                com.janrain.backplane.server2.BackplaneMessage.Field.STICKY, 4,
+                com.janrain.backplane.server2.BackplaneMessage.Field.EXPIRE, 5,
+                com.janrain.backplane.server2.BackplaneMessage.Field.SOURCE, 6,
+                com.janrain.backplane.server2.BackplaneMessage.Field.TYPE, 7,
+                com.janrain.backplane.server2.BackplaneMessage.Field.MESSAGE_URL, 8,
+                com.janrain.backplane.server2.BackplaneMessage.Field.PAYLOAD, 9,
+                com.janrain.backplane.server2.BackplaneMessage.Field.FRAME, 10);
+
+        assertFieldCodes(AuthorizationRequest.class,
+                AuthorizationRequest.Field.COOKIE, 1,
+                AuthorizationRequest.Field.EXPIRES, 2,
+                AuthorizationRequest.Field.CLIENT_ID, 3,
+                AuthorizationRequest.Field.RESPONSE_TYPE, 4,
+                AuthorizationRequest.Field.REDIRECT_URI, 5,
+                AuthorizationRequest.Field.SCOPE, 6,
+                AuthorizationRequest.Field.STATE, 7);
+
+        assertFieldCodes(AuthorizationDecisionKey.class,
+                AuthorizationDecisionKey.Field.KEY, 1,
+                AuthorizationDecisionKey.Field.AUTH_COOKIE, 2,
+                AuthorizationDecisionKey.Field.EXPIRES, 3);
+    }
+
+    // - PRIVATE
+
+    /**
+     * @param fieldsAndCodes all fields of the type, each followed by its code
+     */
+    private static void assertFieldCodes(Class<? extends ExternalizableCore> type, Object... fieldsAndCodes) {
+        Map<String,Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < fieldsAndCodes.length; i += 2) {
+            expected.put(((MessageField) fieldsAndCodes[i]).getFieldName(), (Integer) fieldsAndCodes[i + 1]);
+        }
+        assertEquals(type.getName(), expected, ExternalizableCoreCodec.getFieldCodes(type));
+    }
+}
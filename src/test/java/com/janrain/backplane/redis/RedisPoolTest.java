@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.redis;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class RedisPoolTest {
+
+    @Test
+    public void testLatencyEwma() {
+        RedisPool pool = createPool();
+        assertEquals(0, pool.getLatencyEwmaNanos());
+        pool.recordSuccess(1000);
+        assertEquals(1000, pool.getLatencyEwmaNanos());
+        pool.recordSuccess(2000);
+        assertEquals(1100, pool.getLatencyEwmaNanos());
+    }
+
+    @Test
+    public void testEjectedAfterConsecutiveErrors() {
+        RedisPool pool = createPool();
+        pool.recordError();
+        pool.recordError();
+        pool.recordSuccess(1000);
+        pool.recordError();
+        pool.recordError();
+        assertTrue(pool.isHealthy());
+        pool.recordError();
+        assertFalse(pool.isHealthy());
+        // not due for a probe yet
+        assertFalse(pool.tryProbe());
+    }
+
+    @Test
+    public void testReadmittedOnSuccess() {
+        RedisPool pool = createPool();
+        for (int i = 0; i < 3; i++) {
+            pool.recordError();
+        }
+        assertFalse(pool.isHealthy());
+        pool.recordSuccess(1000);
+        assertTrue(pool.isHealthy());
+        assertFalse(pool.tryProbe());
+    }
+
+    @Test
+    public void testLeaseFailuresEject() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        int port = server.getLocalPort();
+        server.close();
+        RedisPool pool = createPool(port);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(pool.isHealthy());
+            try {
+                pool.lease();
+                fail("leased a connection to a closed port");
+            } catch (JedisConnectionException e) {
+                // expected
+            }
+        }
+        assertFalse(pool.isHealthy());
+    }
+
+    @Test
+    public void testCommandFailuresEject() throws Exception {
+        ServerSocket server = startServer(false);
+        try {
+            RedisPool pool = createPool(server.getLocalPort());
+            for (int i = 0; i < 3; i++) {
+                assertTrue(pool.isHealthy());
+                Jedis jedis = pool.lease();
+                try {
+                    jedis.ping();
+                    fail("command succeeded on a dropped connection");
+                } catch (JedisConnectionException e) {
+                    assertTrue(RedisPool.release(jedis, true));
+                }
+            }
+            assertFalse(pool.isHealthy());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testCommandSuccessReadmits() throws Exception {
+        ServerSocket server = startServer(true);
+        try {
+            RedisPool pool = createPool(server.getLocalPort());
+            for (int i = 0; i < 3; i++) {
+                pool.recordError();
+            }
+            assertFalse(pool.isHealthy());
+            Jedis jedis = pool.lease();
+            assertEquals("PONG", jedis.ping());
+            assertTrue(RedisPool.release(jedis, false));
+            assertTrue(pool.isHealthy());
+            // already released
+            assertFalse(RedisPool.release(jedis, false));
+        } finally {
+            server.close();
+        }
+    }
+
+    // - PRIVATE
+
+    private static RedisPool createPool() {
+        return createPool(6379);
+    }
+
+    private static RedisPool createPool(int port) {
+        return new RedisPool(new GenericObjectPool.Config(), "localhost", port, 0);
+    }
+
+    /**
+     * @param respond if true, answers every read with a PONG status reply, otherwise drops each connection right away
+     */
+    private static ServerSocket startServer(final boolean respond) throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = server.accept();
+                        try {
+                            if (! respond) continue;
+                            InputStream in = socket.getInputStream();
+                            OutputStream out = socket.getOutputStream();
+                            byte[] buffer = new byte[1024];
+                            while (in.read(buffer) > 0) {
+                                out.write("+PONG\r\n".getBytes());
+                                out.flush();
+                            }
+                        } catch (IOException e) {
+                            // client went away
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+}
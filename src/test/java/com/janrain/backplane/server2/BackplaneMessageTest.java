@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2;
+
+import com.janrain.backplane.common.BpSerialUtils;
+import com.janrain.backplane.common.DateTimeUtils;
+import com.janrain.backplane.common.JsonUtils;
+import com.janrain.commons.util.Pair;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BackplaneMessageTest {
+
+    @Test
+    public void testPreRenderedFrame() throws Exception {
+        BackplaneMessage message = createMessage();
+        message.renderFrame();
+        message = BpSerialUtils.deserialize(BpSerialUtils.serialize(message));
+
+        String serverName = "backplane.example.com";
+        for (boolean privileged : new boolean[] {true, false}) {
+            String expected = JsonUtils.getMapper().writeValueAsString(message.asFrame(serverName, privileged));
+            String rendered = message.asFrameJson(JsonUtils.escape(serverName), privileged);
+            assertEquals(expected, rendered);
+        }
+    }
+
+    @Test
+    public void testFrameWithoutTemplate() throws Exception {
+        BackplaneMessage message = createMessage();
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.readValue(mapper.writeValueAsString(message.asFrame("host", true)), Map.class),
+                     mapper.readValue(message.asFrameJson("host", true), Map.class));
+        assertNull(message.get(BackplaneMessage.Field.FRAME));
+    }
+
+    @Test
+    public void testUpdateIdAfterLastId() throws Exception {
+        BackplaneMessage message = TestMessages.create("test_type", "payload");
+        String id = message.getIdValue();
+        Date date = BackplaneMessage.getDateFromId(id);
+
+        // older last ID, kept
+        Date older = new Date(date.getTime() - 1);
+        message.updateId(new Pair<String, Date>(DateTimeUtils.ISO8601.get().format(older) + "-aaaaaaaaaa", older));
+        assertEquals(id, message.getIdValue());
+
+        // same and newer last ID times, bumped to 1 ms after the last ID
+        for (long lastTime : new long[] {date.getTime(), date.getTime() + 1000}) {
+            Date lastDate = new Date(lastTime);
+            String lastId = DateTimeUtils.ISO8601.get().format(lastDate) + "-zzzzzzzzzz";
+            Pair<String, Date> updated = message.updateId(new Pair<String, Date>(lastId, lastDate));
+            assertEquals(message.getIdValue(), updated.getLeft());
+            assertEquals(lastTime + 1, updated.getRight().getTime());
+            assertEquals(lastTime + 1, BackplaneMessage.getDateFromId(message.getIdValue()).getTime());
+            assertTrue(message.getIdValue().compareTo(lastId) > 0);
+        }
+
+        // the frame rendered after the update has the new ID
+        message.renderFrame();
+        assertTrue(message.asFrameJson("host", false).contains("/v2/message/" + message.getIdValue() + "\""));
+    }
+
+    // - PRIVATE
+
+    private static BackplaneMessage createMessage() throws Exception {
+        return TestMessages.create("test \"type\"", new HashMap<String, Object>() {{
+            put("key", "välue");
+            put("nested", new HashMap<String, Object>() {{ put("number", 42); }});
+        }});
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ClientGrantsTest {
+
+    @Test
+    public void testGrantsForBus() throws Exception {
+        Grant foo = createGrant("bus:foo", 3600);
+        Grant fooBar = createGrant("bus:foo bus:bar", null);
+        ClientGrants clientGrants = new ClientGrants(Arrays.asList(foo, fooBar));
+
+        assertEquals(ids(foo, fooBar), ids(clientGrants.getGrantsForBus("foo")));
+        assertEquals(ids(fooBar), ids(clientGrants.getGrantsForBus("bar")));
+        assertTrue(clientGrants.getGrantsForBus("baz").isEmpty());
+    }
+
+    @Test
+    public void testGrants() throws Exception {
+        Grant foo = createGrant("bus:foo", 3600);
+        Grant bar = createGrant("bus:bar", null);
+        ClientGrants clientGrants = new ClientGrants(Arrays.asList(foo, bar));
+
+        assertEquals(ids(foo, bar), ids(clientGrants.getGrants().keySet()));
+        assertEquals(foo.getAuthorizedScope(), clientGrants.getGrants().get(foo));
+        assertEquals(bar.getAuthorizedScope(), clientGrants.getGrants().get(bar));
+    }
+
+    @Test
+    public void testExpiredGrantsFiltered() throws Exception {
+        Grant active = createGrant("bus:foo", 3600);
+        Grant expired = createGrant("bus:foo bus:bar", -60);
+        ClientGrants clientGrants = new ClientGrants(Arrays.asList(active, expired));
+
+        assertEquals(ids(active), ids(clientGrants.getGrants().keySet()));
+        assertEquals(ids(active), ids(clientGrants.getGrantsForBus("foo")));
+        assertTrue(clientGrants.getGrantsForBus("bar").isEmpty());
+    }
+
+    @Test
+    public void testExpiresWhileCached() throws Exception {
+        Grant grant = createGrant("bus:foo", 1);
+        ClientGrants clientGrants = new ClientGrants(Arrays.asList(grant));
+        assertEquals(ids(grant), ids(clientGrants.getGrantsForBus("foo")));
+
+        Thread.sleep(1100);
+        assertTrue(clientGrants.getGrantsForBus("foo").isEmpty());
+        assertTrue(clientGrants.getGrants().isEmpty());
+    }
+
+    @Test
+    public void testNoGrants() {
+        ClientGrants clientGrants = new ClientGrants(new ArrayList<Grant>());
+        assertTrue(clientGrants.getGrants().isEmpty());
+        assertTrue(clientGrants.getGrantsForBus("foo").isEmpty());
+        assertEquals(0, clientGrants.sizeBytes());
+    }
+
+    // - PRIVATE
+
+    /**
+     * @param expireSeconds null for a grant that doesn't expire
+     */
+    private static Grant createGrant(String scopes, Integer expireSeconds) throws Exception {
+        Grant.Builder builder = new Grant.Builder(GrantType.CLIENT_CREDENTIALS, GrantState.ACTIVE, "testOwnerId", "testClientId", scopes);
+        if (expireSeconds != null) {
+            builder.expires(expireSeconds);
+        }
+        return builder.buildGrant();
+    }
+
+    private static Set<String> ids(Grant... grants) {
+        return ids(Arrays.asList(grants));
+    }
+
+    private static Set<String> ids(Iterable<Grant> grants) {
+        Set<String> ids = new HashSet<String>();
+        for (Grant grant : grants) {
+            ids.add(grant.getIdValue());
+        }
+        return ids;
+    }
+}
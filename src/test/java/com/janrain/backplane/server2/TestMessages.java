@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2;
+
+import com.janrain.commons.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backplane v2 message fixtures for tests.
+ */
+public class TestMessages {
+
+    /**
+     * @return a message on testbus / testchannel, from http://source.test
+     */
+    public static BackplaneMessage create(String type, Object payload) throws Exception {
+        Map<String,Object> data = new HashMap<String, Object>();
+        data.put(BackplaneMessage.Field.BUS.getFieldName(), "testbus");
+        data.put(BackplaneMessage.Field.CHANNEL.getFieldName(), "testchannel");
+        data.put(BackplaneMessage.Field.TYPE.getFieldName(), type);
+        data.put(BackplaneMessage.Field.PAYLOAD.getFieldName(), payload);
+        return new BackplaneMessage("http://source.test", 60, 3600, data);
+    }
+
+    /**
+     * @return messages with unique, increasing IDs, assigned the same way the message processor does
+     */
+    public static List<BackplaneMessage> createMessages(int count) throws Exception {
+        List<BackplaneMessage> messages = new ArrayList<BackplaneMessage>();
+        Pair<String,Date> lastIdAndDate = new Pair<String, Date>("", new Date(0));
+        for (int i = 0; i < count; i++) {
+            BackplaneMessage message = create("test_type", "payload " + i);
+            message.updateId(lastIdAndDate);
+            lastIdAndDate = new Pair<String, Date>(message.getIdValue(), BackplaneMessage.getDateFromId(message.getIdValue()));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // - PRIVATE
+
+    private TestMessages() { }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2.dao;
+
+import com.janrain.backplane.server2.BackplaneMessage;
+import com.janrain.backplane.server2.TestMessages;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConfigLRUCacheTest {
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        ConfigLRUCache<BackplaneMessage> cache = new ConfigLRUCache<BackplaneMessage>(Long.MAX_VALUE);
+        assertNull(cache.getEntry("missing"));
+        cache.add("missing", null);
+        assertNotNull(cache.getEntry("missing"));
+        assertNull(cache.getEntry("missing").getItem());
+        assertTrue(cache.isCached("missing"));
+
+        // a cached invalidation is not replaced
+        BackplaneMessage message = TestMessages.createMessages(1).get(0);
+        assertFalse(cache.addIfAbsent("missing", message));
+        assertNull(cache.get("missing"));
+        assertTrue(cache.addIfAbsent(message.getIdValue(), message));
+        assertEquals(message.getIdValue(), cache.get(message.getIdValue()).getIdValue());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        ConfigLRUCache<BackplaneMessage> cache = new ConfigLRUCache<BackplaneMessage>(Long.MAX_VALUE, 1);
+        BackplaneMessage message = TestMessages.createMessages(1).get(0);
+        cache.add(message);
+        Thread.sleep(5);
+        assertNull(cache.getEntry(message.getIdValue()));
+        assertEquals(0, cache.getSizeBytes());
+        // an expired entry doesn't block addIfAbsent
+        cache.add(message);
+        Thread.sleep(5);
+        assertTrue(cache.addIfAbsent(message.getIdValue(), null));
+    }
+
+    @Test
+    public void testSizeAccounting() throws Exception {
+        ConfigLRUCache<BackplaneMessage> cache = new ConfigLRUCache<BackplaneMessage>(Long.MAX_VALUE);
+        List<BackplaneMessage> messages = TestMessages.createMessages(2);
+        cache.add(messages.get(0));
+        long oneMessageSize = cache.getSizeBytes();
+        assertTrue(oneMessageSize > 0);
+        cache.add(messages.get(0));
+        assertEquals(oneMessageSize, cache.getSizeBytes());
+        cache.add(messages.get(1));
+        assertEquals(messages.get(0).getIdValue(), cache.delete(messages.get(0).getIdValue()).getIdValue());
+        assertNull(cache.delete(messages.get(0).getIdValue()));
+        cache.clear();
+        assertEquals(0, cache.getSizeBytes());
+        assertFalse(cache.isCached(messages.get(1).getIdValue()));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyRead() throws Exception {
+        List<BackplaneMessage> messages = TestMessages.createMessages(5);
+        ConfigLRUCache<BackplaneMessage> sizing = new ConfigLRUCache<BackplaneMessage>(Long.MAX_VALUE);
+        for (BackplaneMessage message : messages.subList(0, 4)) {
+            sizing.add(message);
+        }
+
+        // fewer entries than the eviction sample size, so eviction is exact
+        ConfigLRUCache<BackplaneMessage> cache = new ConfigLRUCache<BackplaneMessage>(sizing.getSizeBytes());
+        for (BackplaneMessage message : messages.subList(0, 4)) {
+            cache.add(message);
+            Thread.sleep(2);
+        }
+        assertNotNull(cache.get(messages.get(0).getIdValue()));
+        Thread.sleep(2);
+        cache.add(messages.get(4));
+
+        assertTrue(cache.getSizeBytes() <= sizing.getSizeBytes());
+        assertFalse(cache.isCached(messages.get(1).getIdValue()));
+        assertTrue(cache.isCached(messages.get(0).getIdValue()));
+        assertTrue(cache.isCached(messages.get(4).getIdValue()));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        final ConfigLRUCache<BackplaneMessage> cache = new ConfigLRUCache<BackplaneMessage>(Long.MAX_VALUE);
+        final List<BackplaneMessage> messages = TestMessages.createMessages(2);
+        final String id = messages.get(0).getIdValue();
+        assertEquals(id, cache.get(id, new ConfigLRUCache.Loader<BackplaneMessage>() {
+            @Override
+            public BackplaneMessage load(String id) {
+                return messages.get(0);
+            }
+        }).getIdValue());
+        // cached, not loaded again
+        assertEquals(id, cache.get(id, new ConfigLRUCache.Loader<BackplaneMessage>() {
+            @Override
+            public BackplaneMessage load(String id) {
+                return messages.get(1);
+            }
+        }).getIdValue());
+    }
+
+    @Test
+    public void testInvalidationWhileLoading() throws Exception {
+        final ConfigLRUCache<BackplaneMessage> cache = new ConfigLRUCache<BackplaneMessage>(Long.MAX_VALUE);
+        final BackplaneMessage message = TestMessages.createMessages(1).get(0);
+        BackplaneMessage loaded = cache.get(message.getIdValue(), new ConfigLRUCache.Loader<BackplaneMessage>() {
+            @Override
+            public BackplaneMessage load(String id) {
+                cache.invalidate(id);
+                return message;
+            }
+        });
+        // returned, but not kept: it may predate the invalidation
+        assertEquals(message.getIdValue(), loaded.getIdValue());
+        assertFalse(cache.isCached(message.getIdValue()));
+        assertEquals(0, cache.getSizeBytes());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Janrain, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.janrain.backplane.server2.dao;
+
+import com.janrain.backplane.server2.BackplaneMessage;
+import com.janrain.backplane.server2.TestMessages;
+import com.janrain.commons.message.MessageException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageCacheTest {
+
+    @Test
+    public void testMessagesSinceIfCached() throws Exception {
+        List<BackplaneMessage> messages = TestMessages.createMessages(5);
+        MessageCache<BackplaneMessage> cache = new MessageCache<BackplaneMessage>(Long.MAX_VALUE);
+
+        assertNull(cache.getMessagesSinceIfCached(messages.get(0).getIdValue(), 10000));
+
+        cache.reset(messages.get(0).getIdValue());
+        cache.add(new ArrayList<BackplaneMessage>(messages.subList(1, 5)));
+
+        List<BackplaneMessage> since = cache.getMessagesSinceIfCached(messages.get(2).getIdValue(), 10000);
+        assertNotNull(since);
+        assertEquals(2, since.size());
+        assertEquals(messages.get(3).getIdValue(), since.get(0).getIdValue());
+        assertEquals(messages.get(4).getIdValue(), since.get(1).getIdValue());
+
+        assertEquals(0, cache.getMessagesSinceIfCached(messages.get(4).getIdValue(), 10000).size());
+        assertEquals(4, cache.getMessagesSinceIfCached(messages.get(0).getIdValue(), 10000).size());
+
+        // before the cached window
+        assertNull(cache.getMessagesSinceIfCached("2000-01-01T00:00:00.000Z", 10000));
+        // stale
+        assertNull(cache.getMessagesSinceIfCached(messages.get(2).getIdValue(), 0));
+    }
+
+    @Test
+    public void testEvictionMovesWindow() throws Exception {
+        List<BackplaneMessage> messages = TestMessages.createMessages(5);
+        long twoMessagesSize = messages.get(3).sizeBytes() + messages.get(4).sizeBytes();
+        MessageCache<BackplaneMessage> cache = new MessageCache<BackplaneMessage>(twoMessagesSize);
+
+        cache.reset("2000-01-01T00:00:00.000Z");
+        cache.add(new ArrayList<BackplaneMessage>(messages));
+
+        assertTrue(cache.getSizeBytes() <= twoMessagesSize);
+        assertEquals(messages.get(4).getIdValue(), cache.getLastMessage().getIdValue());
+        assertNull(cache.getMessagesSinceIfCached(messages.get(1).getIdValue(), 10000));
+        assertEquals(1, cache.getMessagesSinceIfCached(messages.get(3).getIdValue(), 10000).size());
+
+        cache.removeUpTo(messages.get(3).getIdValue());
+        assertEquals(messages.get(4).getIdValue(), cache.getFirstMessage().getIdValue());
+        assertNull(cache.getMessagesSinceIfCached(messages.get(2).getIdValue(), 10000));
+    }
+
+    @Test(expected = MessageException.class)
+    public void testRejectsOlderMessages() throws Exception {
+        List<BackplaneMessage> messages = TestMessages.createMessages(2);
+        MessageCache<BackplaneMessage> cache = new MessageCache<BackplaneMessage>(Long.MAX_VALUE);
+        cache.add(new ArrayList<BackplaneMessage>(messages.subList(1, 2)));
+        cache.add(new ArrayList<BackplaneMessage>(messages.subList(0, 1)));
+    }
+}
@@ -1,12 +1,20 @@
 package com.janrain.util;
 
 import com.janrain.backplane.common.BpSerialUtils;
+import com.janrain.backplane.config.BpServerConfig;
+import com.janrain.backplane.server2.BackplaneMessage;
+import com.janrain.backplane.server2.Client;
+import com.janrain.backplane.server2.TestMessages;
 import com.sun.jersey.core.util.Base64;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.*;
+
 /**
  * @author Johnny Bufu
  */
@@ -47,6 +55,39 @@ public class SerializationTest {
         }
     }
 
+    @Test
+    public void roundTripCompact() throws Exception {
+        BackplaneMessage message = TestMessages.create("test_type", "\"p\u00e4yload\"");
+
+        byte[] compact = BpSerialUtils.serialize(message);
+        BackplaneMessage deserialized = BpSerialUtils.deserialize(compact);
+        assertEquals(message, deserialized);
+        assertArrayEquals(compact, BpSerialUtils.serialize(deserialized));
+
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(legacy);
+        out.writeObject(message);
+        out.close();
+        System.out.println("BackplaneMessage compact: " + compact.length + " bytes, legacy: " + legacy.size() + " bytes");
+        assertTrue(compact.length < legacy.size());
+        assertEquals(message, BpSerialUtils.deserialize(legacy.toByteArray()));
+    }
+
+    @Test
+    public void roundTripCompactInheritedFields() throws Exception {
+        Client client = new Client("iid", "secret", "http://source.com", "http://redirect.com");
+        Client deserialized = BpSerialUtils.deserialize(BpSerialUtils.serialize(client));
+        assertEquals(Client.class, deserialized.getClass());
+        assertEquals(client, deserialized);
+    }
+
+    @Test
+    public void roundTripCompactUnknownFields() throws Exception {
+        BpServerConfig config = new BpServerConfig();
+        config.put("NOT_A_FIELD", "value");
+        assertEquals(config, BpSerialUtils.deserialize(BpSerialUtils.serialize(config)));
+    }
+
     private Map<String, String> serialized = new HashMap<String, String>() {{
         put("com.janrain.oauth2.AuthorizationDecisionKey", "rO0ABXNyACtjb20uamFucmFpbi5vYXV0aDIuQXV0aG9yaXphdGlvbkRlY2lzaW9uS2V50ZgJnnpC7UgMAAB4cgAvY29tLmphbnJhaW4uYmFja3BsYW5lLnNlcnZlci5FeHRlcm5hbGl6YWJsZUNvcmV3vFoR9O0j2AwAAHhwc3IAEWphdmEudXRpbC5IYXNoTWFwBQfawcMWYNEDAAJGAApsb2FkRmFjdG9ySQAJdGhyZXNob2xkeHA/QAAAAAAADHcIAAAAEAAAAAN0AAdFWFBJUkVTdAAYMjAxMi0xMS0yMFQyMzo1NzowNS45NDhadAALQVVUSF9DT09LSUV0AANibGF0AANLRVl0AB5pZnFrQjZyVzF1ZFlTaTJwY0tDazlEVWw0bURpT2J4eA==");
         put("com.janrain.oauth2.AuthorizationRequest", "rO0ABXNyACdjb20uamFucmFpbi5vYXV0aDIuQXV0aG9yaXphdGlvblJlcXVlc3RG2+YTQAvIdQwAAHhyAC9jb20uamFucmFpbi5iYWNrcGxhbmUuc2VydmVyLkV4dGVybmFsaXphYmxlQ29yZXe8WhH07SPYDAAAeHBzcgARamF2YS51dGlsLkhhc2hNYXAFB9rBwxZg0QMAAkYACmxvYWRGYWN0b3JJAAl0aHJlc2hvbGR4cD9AAAAAAAAMdwgAAAAQAAAABHQAB0VYUElSRVN0ABgyMDEyLTExLTIxVDAwOjEyOjA1Ljk2MFp0AAlDTElFTlRfSUR0AANiYXJ0AA1SRVNQT05TRV9UWVBFdAAEY29kZXQABkNPT0tJRXQAA2JsYXh4");